@@ -6,16 +6,65 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.sql.DataSource;
 
+/**
+ * A data source that pools the connections to one database.
+ * <p>
+ * Opening a SQLDroidConnection parses its URL, checks the database file and looks up the shared
+ * database, so a caller that borrows a connection per unit of work would pay that every time.
+ * Instead, closing a connection from <code>getConnection</code> returns it to the pool: its open
+ * statements and their cursors are closed, a pending transaction is rolled back, and it is put back
+ * into auto-commit and read-write mode with the settings and execution listeners it was opened with.
+ * A connection that can not be reset is closed.
+ * <p>
+ * At most <code>maxPoolSize</code> connections are borrowed at a time.  Further callers wait for a
+ * connection to be returned, in the order they asked, for up to the login timeout if one is set.  The
+ * most recently returned connection is reused first and checked with <code>isValid</code>; connections
+ * that stayed idle for longer than <code>idleTimeout</code> are closed.  While connections are idle, a
+ * daemon timer shared by all data sources looks for expired ones every idle timeout, so that a pool
+ * that is no longer used closes its connections, and with them the database, too.
+ */
 public class DroidDataSource implements DataSource {
-    Connection connection = null;
+    public static final int DEFAULT_MAX_POOL_SIZE = 8;
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
     protected String description = "Android Sqlite Data Source";
     protected String packageName;
     protected String databaseName;
+    protected int maxPoolSize = DEFAULT_MAX_POOL_SIZE;
+    protected long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    protected int loginTimeout = 0;
+
+    /**
+     * The permits to borrow a connection, created with the first connection.
+     */
+    private Semaphore permits;
+
+    /**
+     * The returned connections, the most recently returned first.
+     */
+    private final Deque<IdleConnection> idle = new ArrayDeque<IdleConnection>();
+    private volatile boolean closed = false;
+
+    private static Timer sweeper;
+
+    /**
+     * The task that closes expired idle connections, scheduled while there are idle connections.
+     */
+    private TimerTask sweep;
 
     public DroidDataSource() {
 
@@ -26,11 +75,211 @@ public class DroidDataSource implements DataSource {
         setDatabaseName(databaseName);
     }
 
+    /**
+     * Borrows a connection from the pool, opening a new one if no idle connection is left.  Close the
+     * connection to return it.
+     *
+     * @throws SQLTimeoutException if no connection was returned within the login timeout.
+     */
     @Override
     public Connection getConnection() throws SQLException {
-        String url = "jdbc:sqldroid:" + "/data/data/" + packageName + "/" + databaseName + ".db";
-        connection = new org.sqldroid.SQLDroidDriver().connect(url, new Properties());
-        return connection;
+        if (closed) {
+            throw new SQLException("Data source is closed.");
+        }
+        Semaphore permits = permits();
+        try {
+            if (loginTimeout > 0) {
+                if (!permits.tryAcquire(loginTimeout, TimeUnit.SECONDS)) {
+                    throw new SQLTimeoutException("No connection to " + databaseName + " was returned within " + loginTimeout + " seconds");
+                }
+            } else {
+                permits.acquire();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection to " + databaseName);
+        }
+        boolean borrowed = false;
+        try {
+            String url = url();
+            IdleConnection entry = takeIdle(url);
+            SQLDroidPooledConnection pooled;
+            if (entry != null) {
+                pooled = new SQLDroidPooledConnection(this, entry.connection, entry.settings);
+            } else {
+                SQLDroidConnection connection = (SQLDroidConnection) new org.sqldroid.SQLDroidDriver().connect(url, new Properties());
+                pooled = new SQLDroidPooledConnection(this, connection, connection.settings());
+            }
+            borrowed = true;
+            return pooled;
+        } finally {
+            if (!borrowed) {
+                permits.release();
+            }
+        }
+    }
+
+    String url() {
+        return "jdbc:sqldroid:" + "/data/data/" + packageName + "/" + databaseName + ".db";
+    }
+
+    private synchronized Semaphore permits() {
+        if (permits == null) {
+            permits = new Semaphore(maxPoolSize, true);
+        }
+        return permits;
+    }
+
+    /**
+     * @return the most recently returned connection that is still valid, or null.
+     */
+    private IdleConnection takeIdle(String url) {
+        while (true) {
+            IdleConnection entry;
+            synchronized (idle) {
+                entry = idle.pollFirst();
+            }
+            if (entry == null) {
+                return null;
+            }
+            try {
+                if (!entry.isExpired(System.currentTimeMillis()) && entry.url.equals(url) && entry.connection.isValid(0)) {
+                    return entry;
+                }
+            } catch (SQLException e) {
+                Log.e("DroidDataSource: unable to validate " + entry.connection, e);
+            }
+            close(entry.connection);
+        }
+    }
+
+    /**
+     * Takes back a borrowed connection, resetting it for the next borrower.  A connection that can not
+     * be reset, or is returned after the data source was closed, is closed instead.
+     */
+    void release(SQLDroidPooledConnection pooled, SQLDroidConnection connection) {
+        try {
+            if (!closed && reset(pooled, connection)) {
+                synchronized (idle) {
+                    idle.offerFirst(new IdleConnection(connection, pooled.settings, connection.url(), System.currentTimeMillis()));
+                }
+                scheduleSweep();
+            } else {
+                close(connection);
+            }
+            closeExpired();
+        } finally {
+            permits.release();
+        }
+    }
+
+    private boolean reset(SQLDroidPooledConnection pooled, SQLDroidConnection connection) {
+        try {
+            if (connection.isClosed()) {
+                return false;
+            }
+            pooled.closeStatements();
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            if (connection.isReadOnly()) {
+                connection.setReadOnly(false);
+            }
+            connection.restore(pooled.settings);
+            return true;
+        } catch (SQLException | RuntimeException e) {
+            Log.e("DroidDataSource: unable to reset " + connection + ", closing it", e);
+            return false;
+        }
+    }
+
+    private static synchronized Timer sweeper() {
+        if (sweeper == null) {
+            sweeper = new Timer("SQLDroid idle connections", true);
+        }
+        return sweeper;
+    }
+
+    /**
+     * Schedules closing the expired idle connections every idle timeout, unless it is scheduled
+     * already.  The task ends itself once no connection is idle.
+     */
+    private synchronized void scheduleSweep() {
+        if (sweep != null || idleTimeout <= 0 || closed) {
+            return;
+        }
+        sweep = new TimerTask() {
+            @Override
+            public void run() {
+                closeExpired();
+                synchronized (DroidDataSource.this) {
+                    if (getIdleCount() == 0 || closed) {
+                        cancel();
+                        sweep = null;
+                    }
+                }
+            }
+        };
+        sweeper().schedule(sweep, idleTimeout, idleTimeout);
+    }
+
+    /**
+     * Closes the connections that stayed idle for longer than the idle timeout.  They are the last
+     * ones, since the most recently returned connection is kept first.
+     */
+    private void closeExpired() {
+        List<SQLDroidConnection> expired = new ArrayList<SQLDroidConnection>();
+        long now = System.currentTimeMillis();
+        synchronized (idle) {
+            while (!idle.isEmpty() && idle.peekLast().isExpired(now)) {
+                expired.add(idle.pollLast().connection);
+            }
+        }
+        for (SQLDroidConnection connection : expired) {
+            close(connection);
+        }
+    }
+
+    private static void close(SQLDroidConnection connection) {
+        try {
+            if (!connection.isClosed()) {
+                connection.close();
+            }
+        } catch (SQLException e) {
+            Log.e("DroidDataSource: unable to close " + connection, e);
+        }
+    }
+
+    /**
+     * Closes the idle connections.  The borrowed connections are closed when they are returned, and
+     * no more connections are handed out.
+     */
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            if (sweep != null) {
+                sweep.cancel();
+                sweep = null;
+            }
+        }
+        List<IdleConnection> closing;
+        synchronized (idle) {
+            closing = new ArrayList<IdleConnection>(idle);
+            idle.clear();
+        }
+        for (IdleConnection entry : closing) {
+            close(entry.connection);
+        }
+    }
+
+    /**
+     * @return the number of connections waiting in the pool to be borrowed.
+     */
+    public int getIdleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
     }
 
     @Override
@@ -51,7 +300,7 @@ public class DroidDataSource implements DataSource {
 
     @Override
     public int getLoginTimeout() throws SQLException {
-        return 0;
+        return loginTimeout;
     }
 
     @Override
@@ -63,8 +312,16 @@ public class DroidDataSource implements DataSource {
         }
     }
 
+    /**
+     * Sets how long <code>getConnection</code> waits for a connection when all of them are borrowed,
+     * zero to wait until one is returned.
+     */
     @Override
     public void setLoginTimeout(int seconds) throws SQLException {
+        if (seconds < 0) {
+            throw new SQLException("Login timeout must be >= 0, not " + seconds);
+        }
+        loginTimeout = seconds;
     }
 
     public String getDescription() {
@@ -91,6 +348,37 @@ public class DroidDataSource implements DataSource {
         this.databaseName = databaseName;
     }
 
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    /**
+     * Sets the number of connections that can be borrowed at a time.
+     *
+     * @throws IllegalStateException if a connection was borrowed already.
+     */
+    public synchronized void setMaxPoolSize(int maxPoolSize) {
+        if (maxPoolSize < 1) {
+            throw new IllegalArgumentException("Max pool size must be >= 1, not " + maxPoolSize);
+        }
+        if (permits != null) {
+            throw new IllegalStateException("Max pool size can not change once connections are borrowed");
+        }
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets the time in milliseconds after which an idle connection is closed, zero to keep idle
+     * connections open until the data source is closed.
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = Math.max(0, idleTimeout);
+    }
+
     @Override
     public boolean isWrapperFor(Class<?> iface) throws SQLException {
         return iface != null && iface.isAssignableFrom(getClass());
@@ -108,4 +396,25 @@ public class DroidDataSource implements DataSource {
         return null;
     }
 
+    /**
+     * A connection in the pool, with the settings and URL it was opened with and the time it was returned.
+     */
+    private final class IdleConnection {
+        final SQLDroidConnection connection;
+        final SQLDroidConnection.Settings settings;
+        final String url;
+        final long since;
+
+        IdleConnection(SQLDroidConnection connection, SQLDroidConnection.Settings settings, String url, long since) {
+            this.connection = connection;
+            this.settings = settings;
+            this.url = url;
+            this.since = since;
+        }
+
+        boolean isExpired(long now) {
+            return idleTimeout > 0 && now - since > idleTimeout;
+        }
+    }
+
 }
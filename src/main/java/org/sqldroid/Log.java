@@ -1,30 +1,135 @@
 package org.sqldroid;
 
+/**
+ * The logging of the driver, which goes to {@link #LOG} for messages of at least {@link #LEVEL}.
+ * <p>
+ * The level is checked before a message is built: the methods that take arguments only format
+ * them into the message, replacing each <code>{}</code> of the pattern with the next argument, if
+ * the level is enabled.  So a call such as
+ * <pre>
+ * Log.v("SQLiteDatabase execSQL: {} {}", Log.THREAD, sql);
+ * </pre>
+ * costs a comparison of the level when verbose logging is off, instead of copying the sql into a new
+ * string.  A message whose arguments are expensive to compute (or would be boxed primitives) should
+ * be guarded with {@link #isLoggable(int)}.  A release build can strip the disabled calls altogether,
+ * for example with ProGuard's <code>-assumenosideeffects</code> for <code>Log.v</code> and
+ * <code>Log.d</code>.
+ */
 public class Log {
 
     public static int LEVEL = android.util.Log.WARN;
     public static ILog LOG = new AndroidLog();
 
+    /**
+     * An argument that is formatted as the id and name of the thread that logs the message.
+     */
+    public static final Object THREAD = new Object() {
+        @Override
+        public String toString() {
+            Thread thread = Thread.currentThread();
+            return thread.getId() + " \"" + thread.getName() + "\"";
+        }
+    };
+
+    /**
+     * @return true if messages of the level, such as <code>android.util.Log.DEBUG</code>, are logged.
+     */
+    public static boolean isLoggable(int level) {
+        return LEVEL <= level;
+    }
+
     static void d(String message) {
-        LOG.d(message);
+        if (LEVEL <= android.util.Log.DEBUG) {
+            LOG.d(message);
+        }
+    }
+
+    static void d(String pattern, Object arg) {
+        if (LEVEL <= android.util.Log.DEBUG) {
+            LOG.d(format(pattern, arg));
+        }
+    }
+
+    static void d(String pattern, Object arg1, Object arg2) {
+        if (LEVEL <= android.util.Log.DEBUG) {
+            LOG.d(format(pattern, arg1, arg2));
+        }
+    }
+
+    static void d(String pattern, Object arg1, Object arg2, Object arg3) {
+        if (LEVEL <= android.util.Log.DEBUG) {
+            LOG.d(format(pattern, arg1, arg2, arg3));
+        }
     }
 
     static void e(String message) {
-        LOG.e(message);
+        if (LEVEL <= android.util.Log.ERROR) {
+            LOG.e(message);
+        }
     }
 
     static void e(String message, Throwable t) {
-        LOG.e(message, t);
+        if (LEVEL <= android.util.Log.ERROR) {
+            LOG.e(message, t);
+        }
     }
 
     static void i(String message) {
-        LOG.i(message);
+        if (LEVEL <= android.util.Log.INFO) {
+            LOG.i(message);
+        }
+    }
+
+    static void i(String pattern, Object arg) {
+        if (LEVEL <= android.util.Log.INFO) {
+            LOG.i(format(pattern, arg));
+        }
+    }
+
+    static void i(String pattern, Object arg1, Object arg2) {
+        if (LEVEL <= android.util.Log.INFO) {
+            LOG.i(format(pattern, arg1, arg2));
+        }
     }
 
     static void v(String message) {
-        LOG.v(message);
+        if (LEVEL <= android.util.Log.VERBOSE) {
+            LOG.v(message);
+        }
+    }
+
+    static void v(String pattern, Object arg) {
+        if (LEVEL <= android.util.Log.VERBOSE) {
+            LOG.v(format(pattern, arg));
+        }
+    }
+
+    static void v(String pattern, Object arg1, Object arg2) {
+        if (LEVEL <= android.util.Log.VERBOSE) {
+            LOG.v(format(pattern, arg1, arg2));
+        }
+    }
+
+    /**
+     * Replaces each <code>{}</code> of the pattern with the next argument.
+     */
+    static String format(String pattern, Object... args) {
+        StringBuilder message = new StringBuilder(pattern.length() + 16 * args.length);
+        int start = 0;
+        for (Object arg : args) {
+            int placeholder = pattern.indexOf("{}", start);
+            if (placeholder < 0) {
+                break;
+            }
+            message.append(pattern, start, placeholder).append(arg);
+            start = placeholder + 2;
+        }
+        return message.append(pattern, start, pattern.length()).toString();
     }
 
+    /**
+     * Receives the messages of at least {@link #LEVEL}, the lower levels are not even built.
+     */
     public interface ILog {
 
         void d(String message);
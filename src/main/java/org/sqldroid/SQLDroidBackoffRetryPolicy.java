@@ -0,0 +1,68 @@
+package org.sqldroid;
+
+import java.util.Random;
+
+/**
+ * Retries an operation on a locked database with exponential backoff until a timeout.
+ * <p>
+ * The delays double from <code>initialDelay</code> up to <code>maxDelay</code>, and each is
+ * shortened by a random amount of up to half, so that the threads waiting for the same lock do not
+ * retry in step.  The thread that holds the lock then gets the CPU instead of threads that spin on
+ * it.  The last delay ends at the timeout.
+ */
+public class SQLDroidBackoffRetryPolicy implements SQLDroidRetryPolicy {
+
+    private static final Random jitter = new Random();
+
+    private final long timeout;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final long busyTimeout;
+
+    /**
+     * @param timeout      the time in milliseconds after which an operation gives up, zero to not retry
+     * @param initialDelay the delay in milliseconds before the first retry
+     * @param maxDelay     the longest delay in milliseconds between two attempts
+     */
+    public SQLDroidBackoffRetryPolicy(long timeout, long initialDelay, long maxDelay) {
+        this(timeout, initialDelay, maxDelay, 0);
+    }
+
+    /**
+     * @param busyTimeout the time in milliseconds SQLite waits for a lock before the first retry,
+     *                    zero to keep the busy timeout of android
+     * @see SQLDroidRetryPolicy#getBusyTimeout()
+     */
+    public SQLDroidBackoffRetryPolicy(long timeout, long initialDelay, long maxDelay, long busyTimeout) {
+        this.timeout = Math.max(0, timeout);
+        this.initialDelay = Math.max(1, initialDelay);
+        this.maxDelay = Math.max(this.initialDelay, maxDelay);
+        this.busyTimeout = Math.max(0, busyTimeout);
+    }
+
+    @Override
+    public long getBusyTimeout() {
+        return busyTimeout;
+    }
+
+    @Override
+    public long nextDelay(int attempt, long waited) {
+        long remaining = timeout - waited;
+        if (remaining <= 0) {
+            return -1;
+        }
+        long delay = initialDelay;
+        for (int i = 1; i < attempt && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelay);
+        long jittered = delay - (long) (jitter.nextDouble() * delay / 2);
+        return Math.min(Math.max(1, jittered), remaining);
+    }
+
+    @Override
+    public String toString() {
+        return "SQLDroidBackoffRetryPolicy(timeout=" + timeout + ", initialDelay=" + initialDelay
+                + ", maxDelay=" + maxDelay + ", busyTimeout=" + busyTimeout + ")";
+    }
+}
@@ -0,0 +1,158 @@
+package org.sqldroid;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * The query timeout and cancellation of a statement, built on the CancellationSignal that
+ * android's rawQuery accepts since API 16.
+ * <p>
+ * Every query execution gets a new signal, since a signal can not be reset once it is cancelled.
+ * The signal stays attached to the cursor, so it also interrupts filling the next cursor window
+ * while the result set is read.  A timeout therefore limits the time from executing the query until
+ * its result set is closed.  All timeouts share one timer thread.  A cancelled timer task stays in
+ * the queue of the timer until it would have run, so the timer is purged every
+ * {@link #PURGE_INTERVAL} cancelled timeouts, or the queue would grow with every query that
+ * finishes in time.  (The remove-on-cancel policy of ScheduledThreadPoolExecutor does this without
+ * purging, but only exists since API 21.)
+ * <p>
+ * Only queries can be cancelled: android offers no cancellation signal for the execution of a
+ * compiled statement.  So a statement only registers with its connection, for
+ * {@link SQLDroidConnection#abort}, once it starts its first query.
+ */
+class SQLDroidCancellation {
+
+    /**
+     * The number of timeouts cancelled between purges of the timer.
+     */
+    static final int PURGE_INTERVAL = 100;
+
+    private static Timer timer;
+    private static int cancelledTasks = 0;
+
+    private final SQLDroidConnection connection;
+
+    /**
+     * The query timeout in seconds, zero for the network timeout of the connection.
+     */
+    private int queryTimeout = 0;
+
+    private CancellationSignal signal;
+    private TimerTask timeoutTask;
+    private volatile boolean timedOut;
+    private boolean registered = false;
+
+    SQLDroidCancellation(SQLDroidConnection connection) {
+        this.connection = connection;
+    }
+
+    private static synchronized Timer timer() {
+        if (timer == null) {
+            timer = new Timer("SQLDroid query timeout", true);
+        }
+        return timer;
+    }
+
+    /**
+     * Cancels a timeout, purging the cancelled timeouts from the timer now and then.
+     */
+    private static void cancel(TimerTask task) {
+        task.cancel();
+        synchronized (SQLDroidCancellation.class) {
+            if (++cancelledTasks >= PURGE_INTERVAL) {
+                cancelledTasks = 0;
+                timer.purge();
+            }
+        }
+    }
+
+    int getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    void setQueryTimeout(int seconds) throws SQLException {
+        if (seconds < 0) {
+            throw new SQLException("Query timeout must be >= 0, not " + seconds);
+        }
+        queryTimeout = seconds;
+    }
+
+    /**
+     * Starts a query execution, ending the previous one.
+     *
+     * @return the signal to pass to the query.
+     */
+    synchronized CancellationSignal start() {
+        finish(signal);
+        if (!registered) {
+            connection.registerCancellation(this);
+            registered = true;
+        }
+        final CancellationSignal started = new CancellationSignal();
+        signal = started;
+        timedOut = false;
+        long timeout = queryTimeout > 0 ? queryTimeout * 1000L : connection.getNetworkTimeoutMillis();
+        if (timeout > 0) {
+            timeoutTask = new TimerTask() {
+                @Override
+                public void run() {
+                    timedOut = true;
+                    started.cancel();
+                }
+            };
+            timer().schedule(timeoutTask, timeout);
+        }
+        return started;
+    }
+
+    /**
+     * Ends a query execution, when its result set is closed, so that its timeout no longer applies.
+     * Does nothing if another execution was started since.
+     */
+    synchronized void finish(CancellationSignal finished) {
+        if (finished != null && finished == signal) {
+            if (timeoutTask != null) {
+                cancel(timeoutTask);
+                timeoutTask = null;
+            }
+            signal = null;
+        }
+    }
+
+    /**
+     * Cancels the running query, if any.  This may be called from any thread.
+     */
+    synchronized void cancel() {
+        if (signal != null) {
+            signal.cancel();
+        }
+    }
+
+    /**
+     * Ends the execution of the signal and unregisters from the connection.
+     */
+    synchronized void close() {
+        finish(signal);
+        if (registered) {
+            connection.unregisterCancellation(this);
+            registered = false;
+        }
+    }
+
+    /**
+     * Ends the cancelled execution and translates the cancellation to a SQLTimeoutException if the
+     * timeout cancelled it, or a SQLException otherwise.
+     */
+    SQLException canceled(OperationCanceledException e, CancellationSignal canceledSignal) {
+        boolean timeout = timedOut;
+        finish(canceledSignal);
+        SQLException canceled = timeout ? new SQLTimeoutException("Query timed out") : new SQLException("Query was cancelled");
+        canceled.initCause(e);
+        return canceled;
+    }
+}
@@ -1,5 +1,8 @@
 package org.sqldroid;
 
+import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.database.sqlite.SQLiteStatement;
+
 import java.io.File;
 import java.lang.reflect.Constructor;
 import java.sql.Array;
@@ -18,31 +21,67 @@ import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class SQLDroidConnection implements Connection {
     /**
-     * A map to a single instance of a SQLiteDatabase per DB.
+     * The Android sqlitedb, shared by all connections to the same database.
+     *
+     * @see SQLDroidDatabaseRegistry
      */
-    private static final Map<String, SQLiteDatabase> dbMap =
-            new HashMap<String, SQLiteDatabase>();
+    private SQLiteDatabase sqlitedb;
+
+    private boolean autoCommit = true;
 
     /**
-     * A map from a connection to a SQLiteDatabase instance.
-     * Used to track the use of each instance, and close the database when last conneciton is closed.
+     * True if the connection only reads.  A read-only connection does not begin transactions, so
+     * that with write-ahead logging its queries do not hold the writer connection of the database.
      */
-    private static final Map<SQLDroidConnection, SQLiteDatabase> clientMap =
-            new HashMap<SQLDroidConnection, SQLiteDatabase>();
+    private boolean readOnly = false;
 
     /**
-     * The Android sqlitedb.
+     * The savepoints of the current transaction, the most recent last.
      */
-    private SQLiteDatabase sqlitedb;
+    private final List<SQLDroidSavepoint> savepoints = new ArrayList<SQLDroidSavepoint>();
 
-    private boolean autoCommit = true;
+    /**
+     * The listeners added to the database through this connection, which are removed when it is closed.
+     */
+    private final List<SQLDroidExecutionListener> executionListeners = new ArrayList<SQLDroidExecutionListener>();
+
+    /**
+     * How the transactions of this connection begin.
+     */
+    private SQLDroidTransactionMode transactionMode = SQLDroidTransactionMode.EXCLUSIVE;
+
+    /**
+     * True once a DEFERRED transaction began as an IMMEDIATE one, which is logged only the first time.
+     */
+    private static volatile boolean deferredModeLogged = false;
+
+    /**
+     * True if auto-commit is off, but the transaction has not begun yet.  It begins with the next
+     * statement, so that a connection that is idle between transactions holds no lock.
+     */
+    private boolean transactionPending = false;
+
+    /**
+     * The mode of the pending transaction if it is not the mode of the connection, or null.
+     */
+    private SQLDroidTransactionMode pendingTransactionMode;
+    private int savepointId = 0;
 
     /**
      * Will have the value 9 or greater the version of SQLException has the constructor:
@@ -53,11 +92,6 @@ public class SQLDroidConnection implements Connection {
      */
     protected static int sqlThrowable = -1;
 
-    /**
-     * A cached prepare statement for the count of changed rows
-     */
-    private PreparedStatement changedRowsCountStatement = null;
-
     /**
      * A cached prepare statement for the last row id generated by the database
      */
@@ -67,6 +101,91 @@ public class SQLDroidConnection implements Connection {
 
     private int transactionIsolation = TRANSACTION_SERIALIZABLE;
 
+    /**
+     * The number of compiled statements kept by a connection if the
+     * {@link SQLDroidDriver#STATEMENT_CACHE_SIZE} property is not given.
+     */
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 50;
+
+    /**
+     * The size of android's own cache of compiled sql per database, used unless it is configured otherwise.
+     */
+    static final int DEFAULT_SQL_CACHE_SIZE = 25;
+
+    /**
+     * The maximum number of entries in the statement cache.
+     */
+    private int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+
+    /**
+     * True if a failing batch entry should not stop the execution of the rest of the batch.
+     */
+    private boolean continueBatchOnError = false;
+
+    /**
+     * True if batches of single-row inserts should be executed as multi-row inserts.
+     */
+    private boolean rewriteBatchedInserts = false;
+
+    /**
+     * True if <code>Statement.execute</code> should not count the rows of a query.
+     */
+    private boolean lazyQueryExecution = false;
+
+    /**
+     * True if simple selects are read in pages of the fetch size of their statement.
+     */
+    private boolean keysetPaging = false;
+
+    /**
+     * The factory for the cursors of queries, or null for SQLiteCursor, and the size of their
+     * cursor windows, zero for the platform default.
+     */
+    private CursorFactory cursorFactory;
+    private long cursorWindowSize = 0;
+
+    /**
+     * The defaults of the write-behind queue settings, see {@link SQLDroidDriver#WRITE_BEHIND_QUEUE_SIZE},
+     * {@link SQLDroidDriver#WRITE_BEHIND_COMMIT_INTERVAL} and {@link SQLDroidDriver#WRITE_BEHIND_MAX_WRITES}.
+     */
+    public static final int DEFAULT_WRITE_BEHIND_QUEUE_SIZE = 1000;
+    public static final long DEFAULT_WRITE_BEHIND_COMMIT_INTERVAL = 100;
+    public static final int DEFAULT_WRITE_BEHIND_MAX_WRITES = 1000;
+
+    private int writeBehindQueueSize = DEFAULT_WRITE_BEHIND_QUEUE_SIZE;
+    private long writeBehindCommitInterval = DEFAULT_WRITE_BEHIND_COMMIT_INTERVAL;
+    private int writeBehindMaxWrites = DEFAULT_WRITE_BEHIND_MAX_WRITES;
+    private long writeBehindOfferTimeout = 0;
+
+    /**
+     * The timeout in milliseconds for queries of statements without a query timeout, zero for none.
+     */
+    private volatile int networkTimeout = 0;
+
+    /**
+     * The cancellations of the statements of this connection, which {@link #abort(Executor)} cancels.
+     * Statements that are not closed are dropped once they are garbage.
+     */
+    private final Set<SQLDroidCancellation> cancellations =
+            Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<SQLDroidCancellation, Boolean>()));
+
+    private volatile boolean aborted = false;
+
+    /**
+     * Compiled statements that are not in use, keyed by their sql, in least recently used order.
+     */
+    private final LinkedHashMap<String, SQLiteStatement> statementCache =
+            new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                    if (size() > statementCacheSize) {
+                        eldest.getValue().close();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
     /**
      * Connect to the database with the given url and properties.
      *
@@ -74,10 +193,11 @@ public class SQLDroidConnection implements Connection {
      *             "jdbc:sqlite:/data/data/your-package/databasefilename" so for example:
      *             "jdbc:sqlite:/data/data/org.sqldroid.examples/databases/sqlite.db"
      * @param info Properties object with options.  Supported options are "timeout", "retry", and "shared".
+     *             Any other option in the query part of the url is taken as one of these properties.
      */
     public SQLDroidConnection(String url, Properties info) throws SQLException {
-        Log.v("SQLDroidConnection: " + Thread.currentThread().getId() + " \"" + Thread.currentThread().getName() + "\" " + this);
-        Log.v("New sqlite jdbc from url '" + url + "', " + "'" + info + "'");
+        Log.v("SQLDroidConnection: {} {}", Log.THREAD, this);
+        Log.v("New sqlite jdbc from url '{}', '{}'", url, info);
 
         this.url = url;
         // Make a filename from url
@@ -93,38 +213,55 @@ public class SQLDroidConnection implements Connection {
         }
         long timeout = 0;  // default to no retries to be consistent with other JDBC implemenations.
         long retryInterval = 50; // this was 1000 in the original code.  1 second is too long for each loop.
+        SQLDroidRetryPolicy retryPolicy = null;
+        SQLDroidExecutionListener executionListener = null;
+        long busyTimeout = 0;
         int queryPart = dbQname.indexOf('?');
 
-        // if there's a query part, we accept "timeout=xxx" and "retry=yyy"
+        // if there's a query part, we accept "timeout=xxx" and "retry=yyy", and any property
         if (queryPart > 0) {
+            String options = dbQname.substring(queryPart + 1);
             dbQname = dbQname.substring(0, queryPart);
-            String options = dbQname.substring(queryPart);
+            Properties urlInfo = new Properties();
+            if (info != null) {
+                urlInfo.putAll(info);
+            }
             while (options.length() > 0) {
                 int optionEnd = options.indexOf('&');
                 if (optionEnd == -1) {
                     optionEnd = options.length();
                 }
-                int equals = options.lastIndexOf('=', optionEnd);
+                // the value may contain '=' itself, the name ends at the first one
+                int equals = options.indexOf('=');
+                if (equals < 0 || equals > optionEnd) {
+                    Log.e("Error Parsing URL \"" + url + "\" option \"" + options.substring(0, optionEnd) + "\" has no value");
+                    options = options.substring(Math.min(optionEnd + 1, options.length()));
+                    continue;
+                }
                 String optionName = options.substring(0, equals).trim();
                 String optionValueString = options.substring(equals + 1, optionEnd).trim();
-                long optionValue;
-                try {
-                    optionValue = Long.parseLong(optionValueString);
-                    if (optionName.equals("timeout")) {
-                        timeout = optionValue;
-                    } else if (optionName.equals("retry")) {
-                        timeout = optionValue;
-                        retryInterval = optionValue;
+                if (optionName.equals("timeout") || optionName.equals("retry")) {
+                    try {
+                        long optionValue = Long.parseLong(optionValueString);
+                        if (optionName.equals("timeout")) {
+                            timeout = optionValue;
+                        } else {
+                            timeout = optionValue;
+                            retryInterval = optionValue;
+                        }
+                        Log.v("Timeout: {}", optionValue);
+                    } catch (NumberFormatException nfe) {
+                        // print and ignore
+                        Log.e("Error Parsing URL \"" + url + "\" Timeout String \"" + optionValueString + "\" is not a valid long", nfe);
                     }
-                    Log.v("Timeout: " + timeout);
-                } catch (NumberFormatException nfe) {
-                    // print and ignore
-                    Log.e("Error Parsing URL \"" + url + "\" Timeout String \"" + optionValueString + "\" is not a valid long", nfe);
+                } else {
+                    urlInfo.setProperty(optionName, optionValueString);
                 }
-                options = options.substring(optionEnd + 1);
+                options = options.substring(Math.min(optionEnd + 1, options.length()));
             }
+            info = urlInfo;
         }
-        Log.v("opening database " + dbQname);
+        Log.v("opening database {}", dbQname);
         ensureDbFileCreation(dbQname);
         int flags = android.database.sqlite.SQLiteDatabase.CREATE_IF_NECESSARY
                 | android.database.sqlite.SQLiteDatabase.OPEN_READWRITE
@@ -145,16 +282,97 @@ public class SQLDroidConnection implements Connection {
                     Log.e("Error Parsing DatabaseFlags \"" + info.getProperty(SQLDroidDriver.ADDITONAL_DATABASE_FLAGS) + " not a number ", nfe);
                 }
             }
+            continueBatchOnError = Boolean.parseBoolean(info.getProperty(SQLDroidDriver.BATCH_CONTINUE_ON_ERROR));
+            rewriteBatchedInserts = Boolean.parseBoolean(info.getProperty(SQLDroidDriver.REWRITE_BATCHED_INSERTS));
+            lazyQueryExecution = Boolean.parseBoolean(info.getProperty(SQLDroidDriver.LAZY_QUERY_EXECUTION));
+            keysetPaging = Boolean.parseBoolean(info.getProperty(SQLDroidDriver.KEYSET_PAGING));
+            writeBehindQueueSize = (int) longProperty(info, SQLDroidDriver.WRITE_BEHIND_QUEUE_SIZE, writeBehindQueueSize);
+            writeBehindCommitInterval = longProperty(info, SQLDroidDriver.WRITE_BEHIND_COMMIT_INTERVAL, writeBehindCommitInterval);
+            writeBehindMaxWrites = (int) longProperty(info, SQLDroidDriver.WRITE_BEHIND_MAX_WRITES, writeBehindMaxWrites);
+            writeBehindOfferTimeout = longProperty(info, SQLDroidDriver.WRITE_BEHIND_OFFER_TIMEOUT, writeBehindOfferTimeout);
+            cursorFactory = instanceProperty(info.get(SQLDroidDriver.CURSOR_FACTORY), CursorFactory.class);
+            cursorWindowSize = longProperty(info, SQLDroidDriver.CURSOR_WINDOW_SIZE, cursorWindowSize);
+            retryPolicy = instanceProperty(info.get(SQLDroidDriver.RETRY_POLICY), SQLDroidRetryPolicy.class);
+            busyTimeout = longProperty(info, SQLDroidDriver.BUSY_TIMEOUT, busyTimeout);
+            executionListener = instanceProperty(info.get(SQLDroidDriver.EXECUTION_LISTENER), SQLDroidExecutionListener.class);
+            if (info.getProperty(SQLDroidDriver.TRANSACTION_MODE) != null) {
+                transactionMode = transactionModeProperty(info.getProperty(SQLDroidDriver.TRANSACTION_MODE));
+            }
+            if (info.getProperty(SQLDroidDriver.STATEMENT_CACHE_SIZE) != null) {
+                try {
+                    statementCacheSize = Math.max(0, Integer.parseInt(info.getProperty(SQLDroidDriver.STATEMENT_CACHE_SIZE)));
+                } catch (NumberFormatException nfe) {
+                    Log.e("Error Parsing StatementCacheSize \"" + info.getProperty(SQLDroidDriver.STATEMENT_CACHE_SIZE) + " not a number ", nfe);
+                }
+            }
+        }
+        if (retryPolicy == null) {
+            retryPolicy = new SQLDroidBackoffRetryPolicy(timeout, 1, retryInterval, busyTimeout);
+        }
+        sqlitedb = SQLDroidDatabaseRegistry.acquire(dbQname, retryPolicy, flags);
+        try {
+            if (executionListener != null) {
+                addExecutionListener(executionListener);
+            }
+            if (info != null && Boolean.parseBoolean(info.getProperty(SQLDroidDriver.WRITE_AHEAD_LOGGING))
+                    && !sqlitedb.enableWriteAheadLogging()) {
+                Log.i("SQLDroidConnection: write-ahead logging is not available for {}", dbQname);
+            }
+            // android compiles each SQLiteStatement on execution through a per database cache of native
+            // statements keyed by the sql.  Make it at least as large as ours, or statements we keep would
+            // still be recompiled.
+            SQLDroidDatabaseRegistry.ensureSqlCacheSize(sqlitedb, statementCacheSize);
+        } catch (SQLException | RuntimeException e) {
+            // no one will close this connection, give back its reference to the shared database
+            try {
+                close();
+            } catch (SQLException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw e;
+        }
+    }
+
+    private static SQLDroidTransactionMode transactionModeProperty(String property) throws SQLException {
+        try {
+            return SQLDroidTransactionMode.valueOf(property.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new SQLException("Unknown " + SQLDroidDriver.TRANSACTION_MODE + " \"" + property
+                    + "\", expected DEFERRED, IMMEDIATE or EXCLUSIVE");
+        }
+    }
+
+    /**
+     * @return the instance given by a property such as {@link SQLDroidDriver#CURSOR_FACTORY}, either itself
+     * or as the name of its class, or null if the property is not set.
+     * @throws SQLException if the property names a class that is not of the type or can not be created.
+     */
+    private static <T> T instanceProperty(Object property, Class<T> type) throws SQLException {
+        if (property == null || type.isInstance(property)) {
+            return type.cast(property);
+        }
+        try {
+            return type.cast(Class.forName(property.toString()).newInstance());
+        } catch (Exception e) {
+            SQLException failure = new SQLException("Unable to create the " + type.getSimpleName() + " " + property);
+            failure.initCause(e);
+            throw failure;
         }
-        synchronized (dbMap) {
-            sqlitedb = dbMap.get(dbQname);
-            if (sqlitedb == null) {
-                Log.i("SQLDroidConnection: " + Thread.currentThread().getId() + " \"" + Thread.currentThread().getName() + "\" " + this + " Opening new database: " + dbQname);
-                sqlitedb = new SQLiteDatabase(dbQname, timeout, retryInterval, flags);
-                dbMap.put(dbQname, sqlitedb);
+    }
+
+    /**
+     * @return the numeric value of the property, or the default if the property is not set or not a number.
+     */
+    private static long longProperty(Properties info, String key, long defaultValue) {
+        String value = info.getProperty(key);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException nfe) {
+                Log.e("Error Parsing " + key + " \"" + value + " not a number ", nfe);
             }
-            clientMap.put(this, sqlitedb);
         }
+        return defaultValue;
     }
 
     private void ensureDbFileCreation(String dbQname) throws SQLException {
@@ -214,15 +432,21 @@ public class SQLDroidConnection implements Connection {
 
     @Override
     public void close() throws SQLException {
-        Log.v("SQLDroidConnection.close(): " + Thread.currentThread().getId() + " \"" + Thread.currentThread().getName() + "\" " + this);
+        Log.v("SQLDroidConnection.close(): {} {}", Log.THREAD, this);
+        clearStatementCache();
         if (sqlitedb != null) {
-            synchronized (dbMap) {
-                clientMap.remove(this);
-                if (!clientMap.containsValue(sqlitedb)) {
-                    Log.i("SQLDroidConnection.close(): " + Thread.currentThread().getId() + " \"" + Thread.currentThread().getName() + "\" " + this + " Closing the database since since last connection was closed.");
+            synchronized (executionListeners) {
+                for (SQLDroidExecutionListener listener : executionListeners) {
+                    sqlitedb.removeExecutionListener(listener);
+                }
+                executionListeners.clear();
+            }
+            if (SQLDroidDatabaseRegistry.release(sqlitedb)) {
+                Log.i("SQLDroidConnection.close(): {} {} Closing the database since since last connection was closed.", Log.THREAD, this);
+                try {
                     setAutoCommit(true);
-                    sqlitedb.close();
-                    dbMap.remove(sqlitedb.dbQname);
+                } finally {
+                    SQLDroidDatabaseRegistry.close(sqlitedb);
                 }
             }
             sqlitedb = null;
@@ -236,11 +460,16 @@ public class SQLDroidConnection implements Connection {
         if (autoCommit) {
             throw new SQLException("database in auto-commit mode");
         }
+        pendingTransactionMode = null;
+        if (readOnly || transactionPending) {
+            return;
+        }
+        savepoints.clear();
         sqlitedb.setTransactionSuccessful();
-        Log.d("END TRANSACTION  (commit) " + Thread.currentThread().getId() + " \"" + Thread.currentThread().getName() + "\" " + this);
+        Log.d("END TRANSACTION  (commit) {} {}", Log.THREAD, this);
         sqlitedb.endTransaction();
-        Log.d("BEGIN TRANSACTION (after commit) " + Thread.currentThread().getId() + " \"" + Thread.currentThread().getName() + "\" " + this);
-        sqlitedb.beginTransaction();
+        // the next transaction begins with the next statement
+        transactionPending = true;
     }
 
     @Override
@@ -310,13 +539,22 @@ public class SQLDroidConnection implements Connection {
     @Override
     public boolean isClosed() throws SQLException {
         // assuming that "isOpen" doesn't throw a locked exception..
-        return sqlitedb == null || sqlitedb.getSqliteDatabase() == null ||
+        return aborted || sqlitedb == null || sqlitedb.getSqliteDatabase() == null ||
                 !sqlitedb.getSqliteDatabase().isOpen();
     }
 
     @Override
     public boolean isReadOnly() throws SQLException {
-        return false;
+        return readOnly;
+    }
+
+    /**
+     * Rejects the statement if this connection is read-only and the statement writes.
+     */
+    void checkWritable(SQLDroidSqlClassification classification, String sql) throws SQLException {
+        if (readOnly && classification.isWrite()) {
+            throw new SQLException("Connection is read-only: " + sql);
+        }
     }
 
     @Override
@@ -354,12 +592,13 @@ public class SQLDroidConnection implements Connection {
 
     @Override
     public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
-        throw new SQLFeatureNotSupportedException("prepareStatement(String,int[]) not supported");
+        // the row id is the only key SQLite can report, whatever columns are asked for
+        return prepareStatement(sql, PreparedStatement.RETURN_GENERATED_KEYS);
     }
 
     @Override
     public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
-        throw new SQLFeatureNotSupportedException("prepareStatement(String,String[]) not supported");
+        return prepareStatement(sql, PreparedStatement.RETURN_GENERATED_KEYS);
     }
 
     @Override
@@ -381,10 +620,15 @@ public class SQLDroidConnection implements Connection {
         return prepareStatement(sql);
     }
 
+    /**
+     * Releases the savepoint and the savepoints set after it, keeping their changes in the
+     * transaction.
+     */
     @Override
     public void releaseSavepoint(Savepoint savepoint) throws SQLException {
-        // TODO: Implemented in Xerial as db.exec(String.format("RELEASE SAVEPOINT %s", savepoint.getSavepointName()));
-        throw new SQLFeatureNotSupportedException("releaseSavepoint not supported");
+        int index = savepointIndex(savepoint);
+        sqlitedb.execSQL("RELEASE SAVEPOINT " + savepoints.get(index).identifier());
+        savepoints.subList(index, savepoints.size()).clear();
     }
 
     @Override
@@ -392,16 +636,39 @@ public class SQLDroidConnection implements Connection {
         if (autoCommit) {
             throw new SQLException("database in auto-commit mode");
         }
-        Log.d("END TRANSACTION (rollback) " + Thread.currentThread().getId() + " \"" + Thread.currentThread().getName() + "\" " + this);
+        pendingTransactionMode = null;
+        if (readOnly || transactionPending) {
+            return;
+        }
+        savepoints.clear();
+        Log.d("END TRANSACTION (rollback) {} {}", Log.THREAD, this);
         sqlitedb.endTransaction();
-        Log.d("BEGIN TRANSACTION (after rollback) " + Thread.currentThread().getId() + " \"" + Thread.currentThread().getName() + "\" " + this);
-        sqlitedb.beginTransaction();
+        transactionPending = true;
     }
 
+    /**
+     * Undoes the changes made since the savepoint was set.  The transaction continues, and the
+     * savepoint stays valid, but the savepoints set after it are released.
+     */
     @Override
     public void rollback(Savepoint savepoint) throws SQLException {
-        // TODO: Implemented in Xerial as db.exec(String.format("ROLLBACK TO SAVEPOINT %s", savepoint.getSavepointName()));
-        throw new SQLFeatureNotSupportedException("rollback not supported");
+        int index = savepointIndex(savepoint);
+        // android takes a statement that starts with ROLLBACK for the end of its transaction, the
+        // comment makes it pass this one to SQLite
+        sqlitedb.execSQL("/* savepoint */ ROLLBACK TO SAVEPOINT " + savepoints.get(index).identifier());
+        savepoints.subList(index + 1, savepoints.size()).clear();
+    }
+
+    /**
+     * @return the index of a savepoint of the current transaction.
+     * @throws SQLException if the savepoint is not one of them.
+     */
+    private int savepointIndex(Savepoint savepoint) throws SQLException {
+        int index = savepoints.indexOf(savepoint);
+        if (index < 0) {
+            throw new SQLException("Savepoint " + savepoint + " is not a savepoint of the current transaction");
+        }
+        return index;
     }
 
     @Override
@@ -410,16 +677,86 @@ public class SQLDroidConnection implements Connection {
             return;
         }
         this.autoCommit = autoCommit;
+        pendingTransactionMode = null;
+        if (readOnly) {
+            // nothing to commit, and no transaction that would hold the writer connection
+            return;
+        }
         if (autoCommit) {
-            if (sqlitedb.inTransaction()) { // to be on safe side.
+            savepoints.clear();
+            if (transactionPending) {
+                // the transaction never began
+                transactionPending = false;
+            } else if (sqlitedb.inTransaction()) { // to be on safe side.
                 sqlitedb.setTransactionSuccessful();
-                Log.d("END TRANSACTION (autocommit on) " + Thread.currentThread().getId() + " \"" + Thread.currentThread().getName() + "\" " + this);
+                Log.d("END TRANSACTION (autocommit on) {} {}", Log.THREAD, this);
                 sqlitedb.endTransaction();
             }
         } else {
-            Log.d("BEGIN TRANSACTION (autocommit off) " + Thread.currentThread().getId() + " \"" + Thread.currentThread().getName() + "\" " + this);
+            // the transaction begins with the next statement
+            transactionPending = true;
+        }
+    }
+
+    /**
+     * Begins the transaction that is pending since auto-commit was turned off or the previous
+     * transaction ended.  The statements call this before they execute.
+     */
+    void beginPendingTransaction() throws SQLException {
+        if (!transactionPending) {
+            return;
+        }
+        SQLDroidTransactionMode mode = pendingTransactionMode != null ? pendingTransactionMode : transactionMode;
+        Log.d("BEGIN TRANSACTION ({}) {} {}", mode, Log.THREAD, this);
+        if (mode == SQLDroidTransactionMode.DEFERRED && !deferredModeLogged) {
+            deferredModeLogged = true;
+            Log.i("SQLDroidConnection: android has no deferred transactions, the DEFERRED transactions of {} begin as IMMEDIATE", url);
+        }
+        if (mode == SQLDroidTransactionMode.EXCLUSIVE) {
             sqlitedb.beginTransaction();
+        } else {
+            sqlitedb.beginTransactionNonExclusive();
+        }
+        transactionPending = false;
+        pendingTransactionMode = null;
+    }
+
+    /**
+     * Leaves auto-commit mode, with a transaction in the given mode that begins with the next
+     * statement.  The transactions that follow it, after commit or rollback, begin in the mode of
+     * the connection again.
+     *
+     * @throws SQLException if the connection is in a transaction already.
+     * @see #setTransactionMode(SQLDroidTransactionMode)
+     */
+    public void beginTransaction(SQLDroidTransactionMode mode) throws SQLException {
+        if (mode == null) {
+            throw new SQLException("Transaction mode must not be null");
+        }
+        if (!autoCommit) {
+            throw new SQLException("Connection is in a transaction already");
+        }
+        setAutoCommit(false);
+        pendingTransactionMode = mode;
+    }
+
+    /**
+     * @see SQLDroidDriver#TRANSACTION_MODE
+     */
+    public SQLDroidTransactionMode getTransactionMode() {
+        return transactionMode;
+    }
+
+    /**
+     * Sets the mode in which the transactions of this connection begin, from the next one on.
+     *
+     * @see SQLDroidDriver#TRANSACTION_MODE
+     */
+    public void setTransactionMode(SQLDroidTransactionMode transactionMode) {
+        if (transactionMode == null) {
+            throw new IllegalArgumentException("Transaction mode must not be null");
         }
+        this.transactionMode = transactionMode;
     }
 
     @Override
@@ -436,20 +773,50 @@ public class SQLDroidConnection implements Connection {
 
     @Override
     public void setReadOnly(boolean readOnly) throws SQLException {
-        if (readOnly != isReadOnly()) {
-            throw new SQLException("Cannot change read-only flag after establishing a connection");
+        if (readOnly == this.readOnly) {
+            return;
         }
+        if (!autoCommit) {
+            throw new SQLException("Cannot change the read-only flag inside a transaction");
+        }
+        this.readOnly = readOnly;
     }
 
+    /**
+     * Sets an anonymous savepoint in the current transaction.  Savepoints nest: rolling back to a
+     * savepoint undoes only the changes made since, so a failed step of a long transaction can be
+     * retried without redoing the steps before it.
+     *
+     * @throws SQLException if the connection is in auto-commit mode or read-only, and has no transaction.
+     */
     @Override
     public Savepoint setSavepoint() throws SQLException {
-        // TODO: In Xerial: db.exec(String.format("SAVEPOINT %s", sp.getSavepointName()))
-        throw new SQLFeatureNotSupportedException("setSavepoint not supported");
+        return setSavepoint(new SQLDroidSavepoint(++savepointId, null));
     }
 
+    /**
+     * Sets a named savepoint in the current transaction.
+     *
+     * @see #setSavepoint()
+     */
     @Override
     public Savepoint setSavepoint(String name) throws SQLException {
-        throw new SQLFeatureNotSupportedException("setSavepoint not supported");
+        if (name == null) {
+            throw new SQLException("Savepoint name must not be null");
+        }
+        return setSavepoint(new SQLDroidSavepoint(++savepointId, name));
+    }
+
+    private Savepoint setSavepoint(SQLDroidSavepoint savepoint) throws SQLException {
+        if (autoCommit || readOnly) {
+            // a savepoint outside of a transaction would begin one that android does not know of
+            throw new SQLException("Savepoints require a transaction, the connection is in "
+                    + (autoCommit ? "auto-commit mode" : "read-only mode"));
+        }
+        beginPendingTransaction();
+        sqlitedb.execSQL("SAVEPOINT " + savepoint.identifier());
+        savepoints.add(savepoint);
+        return savepoint;
     }
 
     @Override
@@ -532,10 +899,29 @@ public class SQLDroidConnection implements Connection {
         return null;
     }
 
+    /**
+     * Runs a trivial query to check that the database can still be read.  The query does not wait
+     * for other connections, so the timeout is not used.
+     */
     @Override
     public boolean isValid(int timeout) throws SQLException {
-        // TODO createStatement().execute("select 1");
-        return true;
+        if (timeout < 0) {
+            throw new SQLException("Timeout must be >= 0, not " + timeout);
+        }
+        if (isClosed()) {
+            return false;
+        }
+        try {
+            android.database.Cursor cursor = sqlitedb.rawQuery("SELECT 1", new String[0]);
+            try {
+                return cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLException e) {
+            Log.d("SQLDroidConnection.isValid(): {} is not valid: {}", this, e.getMessage());
+            return false;
+        }
     }
 
     @Override
@@ -548,6 +934,264 @@ public class SQLDroidConnection implements Connection {
         // TODO Evaluate if this is a sufficient implementation (if so, remove this comment)
     }
 
+    /**
+     * Returns a compiled statement for the sql.  A statement from the statement cache is
+     * reused if there is one, otherwise the sql is compiled.  The caller owns the returned statement
+     * until it hands it back with {@link #releaseStatement(String, SQLiteStatement)} or closes it.
+     */
+    public SQLiteStatement acquireStatement(String sql) throws SQLException {
+        synchronized (statementCache) {
+            SQLiteStatement statement = statementCache.remove(sql);
+            if (statement != null) {
+                return statement;
+            }
+        }
+        return sqlitedb.compileStatement(sql);
+    }
+
+    /**
+     * Returns a compiled statement obtained from {@link #acquireStatement(String)} to the statement
+     * cache.  The statement is closed instead if the cache is disabled, the connection is closed or
+     * the cache already holds a statement for the sql.
+     */
+    public void releaseStatement(String sql, SQLiteStatement statement) {
+        statement.clearBindings();
+        synchronized (statementCache) {
+            if (statementCacheSize > 0 && sqlitedb != null && !statementCache.containsKey(sql)) {
+                statementCache.put(sql, statement);
+                return;
+            }
+        }
+        statement.close();
+    }
+
+    /**
+     * @return the maximum number of compiled statements kept for reuse.
+     */
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of compiled statements kept for reuse.  Zero disables the cache.
+     * Android's cache of compiled sql, which all connections to the database share, grows to match
+     * but is never made smaller.
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        synchronized (statementCache) {
+            this.statementCacheSize = Math.max(0, statementCacheSize);
+            Iterator<SQLiteStatement> statements = statementCache.values().iterator();
+            while (statementCache.size() > this.statementCacheSize) {
+                statements.next().close();
+                statements.remove();
+            }
+        }
+        if (sqlitedb != null) {
+            SQLDroidDatabaseRegistry.ensureSqlCacheSize(sqlitedb, this.statementCacheSize);
+        }
+    }
+
+    /**
+     * @return true if <code>executeBatch</code> continues with the remaining entries after an entry fails.
+     * @see SQLDroidDriver#BATCH_CONTINUE_ON_ERROR
+     */
+    public boolean isContinueBatchOnError() {
+        return continueBatchOnError;
+    }
+
+    /**
+     * Sets whether <code>executeBatch</code> continues with the remaining entries after an entry fails.
+     *
+     * @see SQLDroidDriver#BATCH_CONTINUE_ON_ERROR
+     */
+    public void setContinueBatchOnError(boolean continueBatchOnError) {
+        this.continueBatchOnError = continueBatchOnError;
+    }
+
+    /**
+     * @return true if batches of single-row inserts are executed as multi-row inserts.
+     * @see SQLDroidDriver#REWRITE_BATCHED_INSERTS
+     */
+    public boolean isRewriteBatchedInserts() {
+        return rewriteBatchedInserts;
+    }
+
+    /**
+     * Sets whether batches of single-row inserts are executed as multi-row inserts.
+     *
+     * @see SQLDroidDriver#REWRITE_BATCHED_INSERTS
+     */
+    public void setRewriteBatchedInserts(boolean rewriteBatchedInserts) {
+        this.rewriteBatchedInserts = rewriteBatchedInserts;
+    }
+
+    /**
+     * @return the factory for the cursors of queries, or null if android creates its default cursors.
+     * @see SQLDroidDriver#CURSOR_FACTORY
+     */
+    public CursorFactory getCursorFactory() {
+        return cursorFactory;
+    }
+
+    /**
+     * Sets the factory for the cursors of queries executed from now on, null for android's default cursors.
+     *
+     * @see SQLDroidDriver#CURSOR_FACTORY
+     */
+    public void setCursorFactory(CursorFactory cursorFactory) {
+        this.cursorFactory = cursorFactory;
+    }
+
+    /**
+     * @return the size in bytes of the cursor windows of statements created from now on, zero for the
+     * platform default.
+     * @see SQLDroidDriver#CURSOR_WINDOW_SIZE
+     */
+    public long getCursorWindowSize() {
+        return cursorWindowSize;
+    }
+
+    /**
+     * Sets the size in bytes of the cursor windows of statements created from now on, zero for the
+     * platform default.
+     *
+     * @see SQLDroidDriver#CURSOR_WINDOW_SIZE
+     */
+    public void setCursorWindowSize(long cursorWindowSize) throws SQLException {
+        if (cursorWindowSize < 0) {
+            throw new SQLException("Cursor window size must be >= 0, not " + cursorWindowSize);
+        }
+        this.cursorWindowSize = cursorWindowSize;
+    }
+
+    /**
+     * @return true if <code>Statement.execute</code> returns true for every SELECT without counting its rows.
+     * @see SQLDroidDriver#LAZY_QUERY_EXECUTION
+     */
+    public boolean isLazyQueryExecution() {
+        return lazyQueryExecution;
+    }
+
+    /**
+     * Sets whether <code>Statement.execute</code> returns true for every SELECT without counting its rows.
+     *
+     * @see SQLDroidDriver#LAZY_QUERY_EXECUTION
+     */
+    public void setLazyQueryExecution(boolean lazyQueryExecution) {
+        this.lazyQueryExecution = lazyQueryExecution;
+    }
+
+    /**
+     * @return true if simple selects are read in pages of the fetch size of their statement.
+     * @see SQLDroidDriver#KEYSET_PAGING
+     */
+    public boolean isKeysetPaging() {
+        return keysetPaging;
+    }
+
+    /**
+     * Sets whether simple selects are read in pages of the fetch size of their statement.
+     *
+     * @see SQLDroidDriver#KEYSET_PAGING
+     */
+    public void setKeysetPaging(boolean keysetPaging) {
+        this.keysetPaging = keysetPaging;
+    }
+
+    /**
+     * Queues an update to be executed by the writer thread of the database, outside of the
+     * transactions of this connection.  The writer commits the writes of all connections of the
+     * database that arrive within one commit interval in one transaction, so many small updates
+     * cost one commit instead of one each.  This returns at once: if the queue is full, the update is
+     * rejected (or waits for the offer timeout) instead of waiting for the database.
+     *
+     * @param sql  an INSERT, UPDATE, DELETE or other statement that returns no result set
+     * @param args the arguments of the statement
+     * @return a future for the update count, done when the update is committed
+     * @throws SQLException if the connection is closed, the sql is a query or the queue is full
+     * @see SQLDroidDriver#WRITE_BEHIND_QUEUE_SIZE
+     * @see SQLDroidDriver#WRITE_BEHIND_COMMIT_INTERVAL
+     * @see SQLDroidDriver#WRITE_BEHIND_OFFER_TIMEOUT
+     */
+    public Future<int[]> submitUpdate(String sql, Object... args) throws SQLException {
+        return submitBatch(sql, Collections.singletonList(args));
+    }
+
+    /**
+     * Queues a statement to be executed once per row of arguments by the writer thread of the
+     * database.  The rows are committed in the same transaction.
+     *
+     * @return a future for the update count of each row, done when the rows are committed.  If a row
+     * fails, none of the rows are committed, and the future fails with a BatchUpdateException
+     * holding the counts of the rows before it.
+     * @see #submitUpdate(String, Object...)
+     */
+    public Future<int[]> submitBatch(String sql, List<Object[]> rows) throws SQLException {
+        return writeBehindQueue().submit(sql, rows);
+    }
+
+    /**
+     * Waits until all writes submitted to the write-behind queue of the database before this call
+     * are committed.
+     *
+     * @return false if the timeout expired first
+     */
+    public boolean flushWrites(long timeout, TimeUnit unit) throws SQLException {
+        return writeBehindQueue().flush(timeout, unit);
+    }
+
+    private SQLDroidWriteBehindQueue writeBehindQueue() throws SQLException {
+        if (sqlitedb == null) {
+            throw new SQLException("Connection is closed.");
+        }
+        return sqlitedb.getWriteBehindQueue(writeBehindQueueSize, writeBehindCommitInterval,
+                writeBehindMaxWrites, writeBehindOfferTimeout);
+    }
+
+    /**
+     * Close all compiled statements in the statement cache.
+     */
+    private void clearStatementCache() {
+        synchronized (statementCache) {
+            for (SQLiteStatement statement : statementCache.values()) {
+                statement.close();
+            }
+            statementCache.clear();
+        }
+    }
+
+    /**
+     * @return the counts of the waits for locks of the database, shared by all its connections.
+     */
+    public SQLDroidLockWaitStatistics getLockWaitStatistics() {
+        return sqlitedb.getLockWaitStatistics();
+    }
+
+    /**
+     * Adds a listener that is told about the operations on the database of this connection, until it
+     * is removed or the connection is closed.  The database is shared by all connections to it, so
+     * the listener is also told about the operations of the other connections.
+     *
+     * @see SQLDroidDriver#addExecutionListener(SQLDroidExecutionListener)
+     */
+    public void addExecutionListener(SQLDroidExecutionListener listener) throws SQLException {
+        if (sqlitedb == null) {
+            throw new SQLException("Connection is closed.");
+        }
+        synchronized (executionListeners) {
+            sqlitedb.addExecutionListener(listener);
+            executionListeners.add(listener);
+        }
+    }
+
+    public void removeExecutionListener(SQLDroidExecutionListener listener) {
+        synchronized (executionListeners) {
+            if (executionListeners.remove(listener) && sqlitedb != null) {
+                sqlitedb.removeExecutionListener(listener);
+            }
+        }
+    }
+
     /**
      * @return Where the database is located.
      */
@@ -557,16 +1201,62 @@ public class SQLDroidConnection implements Connection {
 
     // methods added for JDK7 compilation
 
+    /**
+     * Sets the timeout for the queries of statements that have no query timeout of their own.  There
+     * is no network, so the executor is not used.
+     */
     public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
-        throw new SQLFeatureNotSupportedException("setNetworkTimeout not supported");
+        if (milliseconds < 0) {
+            throw new SQLException("Network timeout must be >= 0, not " + milliseconds);
+        }
+        networkTimeout = milliseconds;
     }
 
     public int getNetworkTimeout() throws SQLException {
-        throw new SQLFeatureNotSupportedException("getNetworkTimeout not supported");
+        return networkTimeout;
+    }
+
+    int getNetworkTimeoutMillis() {
+        return networkTimeout;
+    }
+
+    void registerCancellation(SQLDroidCancellation cancellation) {
+        cancellations.add(cancellation);
+    }
+
+    void unregisterCancellation(SQLDroidCancellation cancellation) {
+        cancellations.remove(cancellation);
     }
 
+    /**
+     * Cancels the running queries of this connection and closes it on the executor.  The connection
+     * counts as closed as soon as this returns.
+     */
     public void abort(Executor executor) throws SQLException {
-        close();
+        if (executor == null) {
+            throw new SQLException("abort requires an executor");
+        }
+        if (isClosed()) {
+            return;
+        }
+        aborted = true;
+        List<SQLDroidCancellation> running;
+        synchronized (cancellations) {
+            running = new ArrayList<SQLDroidCancellation>(cancellations);
+        }
+        for (SQLDroidCancellation cancellation : running) {
+            cancellation.cancel();
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    close();
+                } catch (SQLException e) {
+                    Log.e("SQLDroidConnection.abort(): " + SQLDroidConnection.this + " failed to close", e);
+                }
+            }
+        });
     }
 
     public String getSchema() throws SQLException {
@@ -579,21 +1269,12 @@ public class SQLDroidConnection implements Connection {
     /**
      * @return The number of database rows that were changed or inserted or deleted
      * by the most recently completed INSERT, DELETE, or UPDATE statement.
+     * @deprecated The statements of this driver take the update count from the execution of the
+     * statement itself.  This costs an extra query.
      */
+    @Deprecated
     public int changedRowsCount() {
-        int changedRows = -1;
-        try {
-            changedRowsCountStatement = getChangedRowsCountStatement();
-            ResultSet changedRowsCountResultSet = changedRowsCountStatement.executeQuery();
-            if (changedRowsCountResultSet != null && changedRowsCountResultSet.first()) {
-                changedRows = (int) changedRowsCountResultSet.getLong(1);
-                // System.out.println("In SQLDroidConnection.changedRowsCount(), changedRows=" + changedRows);
-            }
-            changedRowsCountResultSet.close();
-        } catch (SQLException e) {
-            // ignore
-        }
-        return changedRows;
+        return sqlitedb.changedRowCount();
     }
 
     /**
@@ -611,14 +1292,68 @@ public class SQLDroidConnection implements Connection {
     }
 
     /**
-     * @return A cached prepare statement for the count of changed rows or create one and return that.
-     * @throws SQLException
+     * @return the settings of this connection that a borrower of a pooled connection may change.
+     * @see DroidDataSource
+     */
+    Settings settings() {
+        synchronized (executionListeners) {
+            return new Settings(this, new ArrayList<SQLDroidExecutionListener>(executionListeners));
+        }
+    }
+
+    /**
+     * Puts back the settings taken by {@link #settings()}, and the listeners that were added with them.
      */
-    private PreparedStatement getChangedRowsCountStatement() throws SQLException {
-        if (changedRowsCountStatement == null) {
-            changedRowsCountStatement = prepareStatement("select changes();");
+    void restore(Settings settings) throws SQLException {
+        transactionMode = settings.transactionMode;
+        continueBatchOnError = settings.continueBatchOnError;
+        rewriteBatchedInserts = settings.rewriteBatchedInserts;
+        lazyQueryExecution = settings.lazyQueryExecution;
+        keysetPaging = settings.keysetPaging;
+        cursorFactory = settings.cursorFactory;
+        cursorWindowSize = settings.cursorWindowSize;
+        networkTimeout = settings.networkTimeout;
+        setStatementCacheSize(settings.statementCacheSize);
+        synchronized (executionListeners) {
+            for (SQLDroidExecutionListener listener : new ArrayList<SQLDroidExecutionListener>(executionListeners)) {
+                if (!settings.executionListeners.contains(listener)) {
+                    removeExecutionListener(listener);
+                }
+            }
+            for (SQLDroidExecutionListener listener : settings.executionListeners) {
+                if (!executionListeners.contains(listener)) {
+                    addExecutionListener(listener);
+                }
+            }
         }
+    }
 
-        return changedRowsCountStatement;
+    /**
+     * The settings of a connection at one time, see {@link #settings()}.
+     */
+    static final class Settings {
+        private final SQLDroidTransactionMode transactionMode;
+        private final boolean continueBatchOnError;
+        private final boolean rewriteBatchedInserts;
+        private final boolean lazyQueryExecution;
+        private final boolean keysetPaging;
+        private final CursorFactory cursorFactory;
+        private final long cursorWindowSize;
+        private final int networkTimeout;
+        private final int statementCacheSize;
+        private final List<SQLDroidExecutionListener> executionListeners;
+
+        private Settings(SQLDroidConnection connection, List<SQLDroidExecutionListener> executionListeners) {
+            this.transactionMode = connection.transactionMode;
+            this.continueBatchOnError = connection.continueBatchOnError;
+            this.rewriteBatchedInserts = connection.rewriteBatchedInserts;
+            this.lazyQueryExecution = connection.lazyQueryExecution;
+            this.keysetPaging = connection.keysetPaging;
+            this.cursorFactory = connection.cursorFactory;
+            this.cursorWindowSize = connection.cursorWindowSize;
+            this.networkTimeout = connection.networkTimeout;
+            this.statementCacheSize = connection.statementCacheSize;
+            this.executionListeners = executionListeners;
+        }
     }
 }
@@ -0,0 +1,82 @@
+package org.sqldroid;
+
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.database.sqlite.SQLiteQuery;
+
+import java.lang.reflect.Constructor;
+
+/**
+ * Creates the cursors of the queries of a statement: with the cursor factory configured for the
+ * connection, if any, and with a cursor window of the configured size.
+ * <p>
+ * The window size trades the time to the first row against how often a query runs again: a cursor
+ * fills its window from the start of the query, and has to run the query again to fill the next
+ * one.  Narrow rows read in large numbers want a small window, wide rows want a large one.  Only
+ * android 9 (API 28) and later can create a window of a given size, before that the size is ignored.
+ *
+ * @see SQLDroidDriver#CURSOR_FACTORY
+ * @see SQLDroidDriver#CURSOR_WINDOW_SIZE
+ */
+class SQLDroidCursorFactory implements CursorFactory {
+
+    /**
+     * CursorWindow(String, long), which exists since API 28, or null.
+     */
+    private static final Constructor<CursorWindow> sizedWindow = sizedWindowConstructor();
+
+    private final CursorFactory delegate;
+    private final long windowSize;
+
+    /**
+     * @param delegate   the factory that creates the cursors, or null for SQLiteCursor
+     * @param windowSize the size of the cursor windows in bytes, or zero for the platform default
+     */
+    SQLDroidCursorFactory(CursorFactory delegate, long windowSize) {
+        this.delegate = delegate;
+        this.windowSize = windowSize;
+    }
+
+    private static Constructor<CursorWindow> sizedWindowConstructor() {
+        try {
+            return CursorWindow.class.getConstructor(String.class, long.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the factory for the cursors of a statement, reusing the current one if its settings are
+     * the same.
+     *
+     * @return null if neither a factory nor a window size is configured, to let android create its
+     * default cursors.
+     */
+    static SQLDroidCursorFactory forStatement(SQLDroidCursorFactory current, CursorFactory delegate, long windowSize) {
+        if (delegate == null && windowSize <= 0) {
+            return null;
+        }
+        if (current != null && current.delegate == delegate && current.windowSize == windowSize) {
+            return current;
+        }
+        return new SQLDroidCursorFactory(delegate, windowSize);
+    }
+
+    @Override
+    public Cursor newCursor(android.database.sqlite.SQLiteDatabase db, SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+        Cursor cursor = delegate != null ? delegate.newCursor(db, driver, editTable, query) : new SQLiteCursor(driver, editTable, query);
+        if (windowSize > 0 && sizedWindow != null && cursor instanceof AbstractWindowedCursor) {
+            try {
+                // the cursor has not filled a window yet, so this is the window it fills first
+                ((AbstractWindowedCursor) cursor).setWindow(sizedWindow.newInstance(query.toString(), windowSize));
+            } catch (Exception e) {
+                Log.e("SQLDroidCursorFactory: unable to create a cursor window of " + windowSize + " bytes", e);
+            }
+        }
+        return cursor;
+    }
+}
@@ -0,0 +1,176 @@
+package org.sqldroid;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The single SQLiteDatabase per database file that all connections to the file share, counted by
+ * the number of connections that use it.
+ * <p>
+ * Databases do not wait for each other: only connections to the same file wait, while the first of
+ * them opens the database (which may retry for as long as its retry policy allows).  Acquiring and
+ * releasing a database that is open is a lookup and an atomic increment or decrement.  The
+ * connection that releases the last reference closes the database, and a connection that arrives
+ * while it is closing waits for the close and then opens the database again.
+ */
+final class SQLDroidDatabaseRegistry {
+
+    private static final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private SQLDroidDatabaseRegistry() {
+    }
+
+    /**
+     * Returns the shared database of the file, opening it if no connection uses it yet.  Every
+     * database acquired must be released once.
+     *
+     * @throws SQLException if the database can not be opened.
+     */
+    static SQLiteDatabase acquire(String dbQname, SQLDroidRetryPolicy retryPolicy, int flags) throws SQLException {
+        while (true) {
+            Entry entry = entries.get(dbQname);
+            if (entry == null) {
+                Entry created = new Entry();
+                entry = entries.putIfAbsent(dbQname, created);
+                if (entry == null) {
+                    return created.open(dbQname, retryPolicy, flags);
+                }
+            }
+            if (entry.retain()) {
+                return entry.await();
+            }
+            // the last connection is closing the database, open it again once it is closed
+            entry.awaitClosed();
+            entries.remove(dbQname, entry);
+        }
+    }
+
+    /**
+     * Releases a reference to a shared database.
+     *
+     * @return true if this was the last reference.  The caller then has to close the database with
+     * {@link #close(SQLiteDatabase)}.
+     */
+    static boolean release(SQLiteDatabase db) {
+        Entry entry = entries.get(db.dbQname);
+        return entry != null && entry.references.decrementAndGet() == 0;
+    }
+
+    /**
+     * Makes android's cache of compiled sql of a shared database hold at least the given number of
+     * statements.  The cache belongs to the database rather than to a connection, so it only ever
+     * grows to the largest size any of its connections asked for.
+     */
+    static void ensureSqlCacheSize(SQLiteDatabase db, int size) {
+        Entry entry = entries.get(db.dbQname);
+        if (entry == null) {
+            return;
+        }
+        size = Math.min(size, android.database.sqlite.SQLiteDatabase.MAX_SQL_CACHE_SIZE);
+        synchronized (entry) {
+            if (size > entry.sqlCacheSize) {
+                db.getSqliteDatabase().setMaxSqlCacheSize(size);
+                entry.sqlCacheSize = size;
+            }
+        }
+    }
+
+    /**
+     * Closes a database of which the last reference was released.
+     */
+    static void close(SQLiteDatabase db) throws SQLException {
+        Entry entry = entries.get(db.dbQname);
+        try {
+            db.close();
+        } finally {
+            if (entry != null) {
+                entries.remove(db.dbQname, entry);
+                entry.closed.countDown();
+            }
+        }
+    }
+
+    /**
+     * A database that is open or being opened, with the number of connections that use it.
+     */
+    private static final class Entry {
+        final AtomicInteger references = new AtomicInteger(1);
+        final CountDownLatch opened = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile SQLiteDatabase db;
+        volatile SQLException failure;
+        /** The size of android's cache of compiled sql of the database, guarded by the entry. */
+        int sqlCacheSize = SQLDroidConnection.DEFAULT_SQL_CACHE_SIZE;
+
+        SQLiteDatabase open(String dbQname, SQLDroidRetryPolicy retryPolicy, int flags) throws SQLException {
+            try {
+                Log.i("SQLDroidDatabaseRegistry: {} Opening new database: {}", Log.THREAD, dbQname);
+                db = new SQLiteDatabase(dbQname, retryPolicy, flags);
+                return db;
+            } catch (SQLException e) {
+                failure = e;
+                throw e;
+            } catch (RuntimeException e) {
+                failure = new SQLException("Unable to open " + dbQname + ": " + e.getMessage());
+                throw e;
+            } finally {
+                if (db == null) {
+                    // let the next connection try again
+                    references.set(0);
+                    entries.remove(dbQname, this);
+                    closed.countDown();
+                }
+                opened.countDown();
+            }
+        }
+
+        /**
+         * Adds a reference, unless the last one was released already.
+         */
+        boolean retain() {
+            while (true) {
+                int count = references.get();
+                if (count <= 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Waits until the database is opened.  The wait is not interrupted, the opening connection
+         * gives up after the lock timeout anyway.
+         */
+        SQLiteDatabase await() throws SQLException {
+            awaitUninterruptibly(opened);
+            if (db == null) {
+                throw failure;
+            }
+            return db;
+        }
+
+        void awaitClosed() {
+            awaitUninterruptibly(closed);
+        }
+
+        private static void awaitUninterruptibly(CountDownLatch latch) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    latch.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -4,7 +4,9 @@ import java.sql.Connection;
 import java.sql.DriverPropertyInfo;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 
 public class SQLDroidDriver implements java.sql.Driver {
@@ -31,6 +33,150 @@ public class SQLDroidDriver implements java.sql.Driver {
      */
     public static final String ADDITONAL_DATABASE_FLAGS = "AdditionalDatabaseFlags";
 
+    /**
+     * Key passed when the SQLDroidConnection is created.  The value of this key should be an
+     * String containing a numeric value which is the maximum number of compiled statements the
+     * connection keeps for reuse by <code>prepareStatement</code>.  Closing a poolable statement returns
+     * its compiled statement to this cache.  Zero disables the cache.  If this key is not set then
+     * {@link SQLDroidConnection#DEFAULT_STATEMENT_CACHE_SIZE} is used.
+     */
+    public static final String STATEMENT_CACHE_SIZE = "StatementCacheSize";
+
+    /**
+     * Key passed when the SQLDroidConnection is created.  If the value of this key is "true" then
+     * <code>executeBatch</code> keeps executing the remaining entries of a batch after an entry fails,
+     * marks the failed entries with <code>Statement.EXECUTE_FAILED</code> and commits the entries that
+     * succeeded.  Otherwise (the default) the batch stops at the first failure and, in auto-commit mode,
+     * is rolled back.  Either way a <code>BatchUpdateException</code> reports the failure.
+     */
+    public static final String BATCH_CONTINUE_ON_ERROR = "BatchContinueOnError";
+
+    /**
+     * Key passed when the SQLDroidConnection is created.  If the value of this key is "true" then
+     * <code>executeBatch</code> of a prepared single-row "INSERT ... VALUES (?, ...)" executes the batch
+     * as multi-row "INSERT ... VALUES (?, ...), (?, ...), ..." statements of as many rows as the
+     * parameter limit of SQLite allows.  The update count of each row is still returned, as
+     * <code>Statement.SUCCESS_NO_INFO</code> if a multi-row statement inserted fewer rows than it holds
+     * (INSERT OR IGNORE, for example).  Batches that request generated keys are not rewritten.  The
+     * default is "false".
+     */
+    public static final String REWRITE_BATCHED_INSERTS = "RewriteBatchedInserts";
+
+    /**
+     * Key passed when the SQLDroidConnection is created.  If the value of this key is "true" then
+     * <code>Statement.execute</code> returns true for every SELECT without looking at its result.
+     * Otherwise it counts the rows of the result, which runs the query to its end, so that it can
+     * return false for an empty result.  A lazy execution does not make the first row come sooner,
+     * since android's cursor counts the rows when it reads the first one, but it saves running a
+     * query whose result is never read.  Queries that are not a SELECT, such as a PRAGMA, are always
+     * run by <code>execute</code>, for their effect.  The default is "false".
+     */
+    public static final String LAZY_QUERY_EXECUTION = "LazyQueryExecution";
+
+    /**
+     * Key passed when the SQLDroidConnection is created.  If the value of this key is "true" then a
+     * query that is a simple single-table select is read in pages of the fetch size of its statement,
+     * ordered by rowid, see {@link SQLDroidKeysetPager}.  Each page is a query of its own, so outside
+     * of a transaction the result is not a consistent snapshot: rows that other connections write
+     * between two pages may or may not be read.  Otherwise the fetch size is only a hint, which is
+     * ignored.  The default is "false".
+     */
+    public static final String KEYSET_PAGING = "KeysetPaging";
+
+    /**
+     * Key passed when the SQLDroidConnection is created.  The value of this key should be the name of
+     * a class implementing <code>android.database.sqlite.SQLiteDatabase.CursorFactory</code> with a
+     * public no argument constructor, or a CursorFactory instance put into the properties.  The
+     * queries of the connection create their cursors with it.
+     */
+    public static final String CURSOR_FACTORY = "CursorFactory";
+
+    /**
+     * Key passed when the SQLDroidConnection is created.  If the value of this key is "true" then
+     * write-ahead logging is enabled for the database, see
+     * {@link SQLiteDatabase#enableWriteAheadLogging()}.  Queries of read-only connections then run
+     * concurrently on the reader connections of android's pool, also while another connection has a
+     * write transaction open.  The default is "false", which leaves the journal mode as it is.
+     */
+    public static final String WRITE_AHEAD_LOGGING = "WriteAheadLogging";
+
+    /**
+     * Key passed when the SQLDroidConnection is created.  The value of this key is the name of a
+     * {@link SQLDroidTransactionMode}: DEFERRED, IMMEDIATE or EXCLUSIVE.  The connection begins its
+     * transactions in this mode.  The default is EXCLUSIVE, which keeps other connections from
+     * reading while a transaction is open unless write-ahead logging is enabled.  Without write-ahead
+     * logging the connections in this process share one android connection, so they also wait for
+     * an IMMEDIATE transaction.  DEFERRED begins an IMMEDIATE transaction, which is logged once.
+     */
+    public static final String TRANSACTION_MODE = "TransactionMode";
+
+    /**
+     * Key passed when the SQLDroidConnection is created.  The value of this key is a
+     * {@link SQLDroidRetryPolicy} or the name of a class implementing it with a public no argument
+     * constructor.  It decides when an operation on a locked database is tried again.  The policy of
+     * the connection that opens the database applies to all connections to it.  By default an
+     * operation is retried with exponential backoff, from 1ms up to the "retry" interval of the URL,
+     * until its "timeout", see {@link SQLDroidBackoffRetryPolicy}.
+     */
+    public static final String RETRY_POLICY = "RetryPolicy";
+
+    /**
+     * Key passed when the SQLDroidConnection is created.  The value of this key is the time in
+     * milliseconds SQLite itself waits for a lock, set with <code>PRAGMA busy_timeout</code>, before
+     * the default retry policy takes over.  The default is zero, which keeps the busy timeout of android.
+     */
+    public static final String BUSY_TIMEOUT = "BusyTimeout";
+
+    /**
+     * Key passed when the SQLDroidConnection is created.  The value of this key is a
+     * {@link SQLDroidExecutionListener} or the name of a class implementing it with a public no argument
+     * constructor.  It is told about the operations on the database of the connection until the
+     * connection is closed, see {@link SQLDroidConnection#addExecutionListener}.
+     */
+    public static final String EXECUTION_LISTENER = "ExecutionListener";
+
+    /**
+     * Key passed when the SQLDroidConnection is created.  The value of this key should be an
+     * String containing a numeric value which is the size in bytes of the cursor windows of the queries
+     * of the connection, which statements can change with <code>setCursorWindowSize</code>.  Android
+     * only allows this from API 28, before that the platform default is used.  If this key is not set
+     * then the platform default is used.
+     */
+    public static final String CURSOR_WINDOW_SIZE = "CursorWindowSize";
+
+    /**
+     * Key passed when the SQLDroidConnection is created.  The value of this key should be an
+     * String containing a numeric value which is the maximum number of writes waiting in the
+     * write-behind queue of the database, see {@link SQLDroidConnection#submitUpdate(String, Object...)}.
+     * If this key is not set then {@link SQLDroidConnection#DEFAULT_WRITE_BEHIND_QUEUE_SIZE} is used.
+     * The settings of the first connection that submits a write to a database apply.
+     */
+    public static final String WRITE_BEHIND_QUEUE_SIZE = "WriteBehindQueueSize";
+
+    /**
+     * Key passed when the SQLDroidConnection is created.  The value of this key should be an
+     * String containing a numeric value which is the time in milliseconds during which the write-behind
+     * queue collects writes into one transaction.  If this key is not set then
+     * {@link SQLDroidConnection#DEFAULT_WRITE_BEHIND_COMMIT_INTERVAL} is used.
+     */
+    public static final String WRITE_BEHIND_COMMIT_INTERVAL = "WriteBehindCommitInterval";
+
+    /**
+     * Key passed when the SQLDroidConnection is created.  The value of this key should be an
+     * String containing a numeric value which is the maximum number of writes the write-behind queue
+     * commits in one transaction.  If this key is not set then
+     * {@link SQLDroidConnection#DEFAULT_WRITE_BEHIND_MAX_WRITES} is used.
+     */
+    public static final String WRITE_BEHIND_MAX_WRITES = "WriteBehindMaxWrites";
+
+    /**
+     * Key passed when the SQLDroidConnection is created.  The value of this key should be an
+     * String containing a numeric value which is the time in milliseconds a write waits for space in a
+     * full write-behind queue before it is rejected.  If this key is not set, or is zero, a write that
+     * does not fit is rejected at once, so that the producer can fail fast and retry later.
+     */
+    public static final String WRITE_BEHIND_OFFER_TIMEOUT = "WriteBehindOfferTimeout";
+
     // TODO(uwe):  Allow jdbc:sqlite: url as well
     public static String sqldroidPrefix = "jdbc:sqldroid:";
     /**
@@ -42,6 +188,13 @@ public class SQLDroidDriver implements java.sql.Driver {
     // making the code hard to read and easy to mistype.
     public static String xerialPrefix = "jdbc:sqlite:";
 
+    /**
+     * The listeners that are told about the operations on all databases.
+     */
+    static final List<SQLDroidExecutionListener> executionListeners = new CopyOnWriteArrayList<SQLDroidExecutionListener>();
+
+    private static final ThreadLocal<String> componentTag = new ThreadLocal<String>();
+
     static {
         try {
             java.sql.DriverManager.registerDriver(new SQLDroidDriver());
@@ -90,6 +243,43 @@ public class SQLDroidDriver implements java.sql.Driver {
         return false;
     }
 
+    /**
+     * Adds a listener that is told about the operations on all databases, until it is removed.
+     */
+    public static void addExecutionListener(SQLDroidExecutionListener listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener");
+        }
+        executionListeners.add(listener);
+    }
+
+    public static void removeExecutionListener(SQLDroidExecutionListener listener) {
+        executionListeners.remove(listener);
+    }
+
+    /**
+     * Sets the tag of the component that runs the operations of the current thread, such as the
+     * name of a feature or a sync job, which is passed to the listeners with each operation.  The
+     * tag follows the thread, not the connection, so that it also works with pooled connections.
+     *
+     * @param tag the tag, or null to clear it
+     * @see SQLDroidExecution#getComponentTag()
+     */
+    public static void setComponentTag(String tag) {
+        if (tag == null) {
+            componentTag.remove();
+        } else {
+            componentTag.set(tag);
+        }
+    }
+
+    /**
+     * @return the tag of the component that runs the operations of the current thread, or null.
+     */
+    public static String getComponentTag() {
+        return componentTag.get();
+    }
+
     // methods added for JDK7 compilation
 
     public Logger getParentLogger() throws SQLFeatureNotSupportedException {
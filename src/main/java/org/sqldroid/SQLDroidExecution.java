@@ -0,0 +1,118 @@
+package org.sqldroid;
+
+/**
+ * One operation on a database, as passed to a {@link SQLDroidExecutionListener}: the operation and its
+ * sql before it runs, and after it ended also the time it took, the time it waited for the lock of the
+ * database and its result or failure.
+ */
+public class SQLDroidExecution {
+
+    private final String database;
+    private final String operation;
+    private final String sql;
+    private final int parameterCount;
+    private final String componentTag;
+    private long startNanos;
+    private long elapsedNanos = -1;
+    private long lockWaitMillis;
+    private long rowCount = -1;
+    private Exception failure;
+
+    SQLDroidExecution(String database, String operation, String sql, int parameterCount, String componentTag) {
+        this.database = database;
+        this.operation = operation;
+        this.sql = sql;
+        this.parameterCount = parameterCount;
+        this.componentTag = componentTag;
+    }
+
+    void started() {
+        startNanos = System.nanoTime();
+    }
+
+    void ended(long lockWaitMillis) {
+        this.elapsedNanos = System.nanoTime() - startNanos;
+        this.lockWaitMillis = lockWaitMillis;
+    }
+
+    void setRowCount(long rowCount) {
+        this.rowCount = rowCount;
+    }
+
+    void setFailure(Exception failure) {
+        this.failure = failure;
+    }
+
+    /**
+     * @return the name of the database.
+     */
+    public String getDatabase() {
+        return database;
+    }
+
+    /**
+     * @return the name of the method of {@link SQLiteDatabase} that ran the operation, for example
+     * "rawQuery", "execSQL", "executeUpdateDelete" or "beginTransaction".
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return the sql of the operation, or null for the calls that begin and end transactions.
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return the number of parameters bound to the sql.
+     */
+    public int getParameterCount() {
+        return parameterCount;
+    }
+
+    /**
+     * @return the tag of the component that ran the operation, as set for its thread with
+     * {@link SQLDroidDriver#setComponentTag(String)}, or null.
+     */
+    public String getComponentTag() {
+        return componentTag;
+    }
+
+    /**
+     * @return the time in nanoseconds the operation took, including the time it waited for the lock,
+     * or -1 before it ended.
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return the time in milliseconds the operation waited for the lock of the database.
+     */
+    public long getLockWaitMillis() {
+        return lockWaitMillis;
+    }
+
+    /**
+     * @return the number of rows the operation inserted, updated or deleted, or -1 if it is not known.
+     * A query reads its rows when its cursor is moved, after the operation ended, so its row count is
+     * not known either.
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return the exception the operation failed with, or null if it succeeded (or did not end yet).
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return operation + (sql != null ? " " + sql : "") + " on " + database;
+    }
+}
@@ -0,0 +1,28 @@
+package org.sqldroid;
+
+/**
+ * Is told about each operation on a database: the queries, the updates, the statements and the
+ * calls that begin and end transactions.  A listener can trace the operations or measure how long
+ * they take.
+ * <p>
+ * A listener is registered either for all databases with {@link SQLDroidDriver#addExecutionListener},
+ * or for the database of a connection with {@link SQLDroidConnection#addExecutionListener} or the
+ * {@link SQLDroidDriver#EXECUTION_LISTENER} property.  It is called on the thread that runs the
+ * operation, by all the threads that use the database, so it should be quick and thread safe.  An
+ * exception thrown by a listener is logged and does not affect the operation.
+ *
+ * @see SQLDroidExecution
+ */
+public interface SQLDroidExecutionListener {
+
+    /**
+     * Called before an operation is started.
+     */
+    void beforeExecution(SQLDroidExecution execution);
+
+    /**
+     * Called after an operation ended, whether it succeeded or failed.  The execution then tells how
+     * long it took, and its result or failure.
+     */
+    void afterExecution(SQLDroidExecution execution);
+}
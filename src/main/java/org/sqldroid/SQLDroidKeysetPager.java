@@ -0,0 +1,187 @@
+package org.sqldroid;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.database.sqlite.SQLiteQuery;
+import android.os.CancellationSignal;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+
+/**
+ * Runs a simple single-table SELECT in pages of <code>fetchSize</code> rows, for a result set that
+ * streams a large table.
+ * <p>
+ * A single cursor over a large result fills cursor windows of up to 2MB, and it runs the query
+ * again from the start whenever it moves past its window.  Instead each page is a query of its own
+ * that seeks past the rowid of the last row of the previous page:
+ * <pre>
+ * SELECT columns, rowid FROM table WHERE (condition) AND rowid &gt; ? ORDER BY rowid LIMIT fetchSize
+ * </pre>
+ * so that a page fits in one window, only one page is held at a time, and every page starts with a
+ * seek on the rowid instead of skipping the rows before it.  The rowid is added as the last column,
+ * which the result set hides.
+ * <p>
+ * The rows come in rowid order, which is also the order of a full scan of the table.  A query is
+ * not paged, but read through a single cursor, if its table has no rowid (a view or a WITHOUT ROWID
+ * table), or if SQLite would have to sort the matching rows of every page by rowid because the
+ * condition uses an index.
+ * <p>
+ * The pages are separate queries.  Outside of a transaction they do not read a consistent snapshot:
+ * rows that other connections insert, update or delete between two pages may or may not be read.
+ *
+ * @see SQLDroidDriver#KEYSET_PAGING
+ * @see SQLDroidSqlClassification#isSimpleSelect()
+ */
+class SQLDroidKeysetPager implements CursorFactory {
+
+    /**
+     * The number of columns the pages have, but the result set hides.
+     */
+    static final int HIDDEN_COLUMNS = 1;
+
+    private final SQLiteDatabase db;
+    private final SQLDroidSqlClassification classification;
+
+    /**
+     * The parameter values of the query, or null for a query without parameters.
+     */
+    private final SQLDroidParameters parameters;
+    private final CancellationSignal cancellationSignal;
+    private final CursorFactory cursorFactory;
+
+    private int fetchSize;
+
+    /**
+     * The fetch size of the last page queried, which is only the last page if it has fewer rows.
+     */
+    private int pageLimit;
+    private String firstPageSql;
+    private String nextPageSql;
+
+    /**
+     * The rowid of the last row of the previous page, bound after the parameters of the query.
+     */
+    private long lastRowId;
+    private boolean afterFirstPage = false;
+
+    /**
+     * @param parameters    the parameter values of the query, which must not change while paging
+     * @param cursorFactory the factory for the cursors of the pages, or null for SQLiteCursor
+     */
+    SQLDroidKeysetPager(SQLiteDatabase db, SQLDroidSqlClassification classification, SQLDroidParameters parameters,
+                        int fetchSize, CancellationSignal cancellationSignal, CursorFactory cursorFactory) {
+        this.db = db;
+        this.classification = classification;
+        this.parameters = parameters;
+        this.cancellationSignal = cancellationSignal;
+        this.cursorFactory = cursorFactory;
+        setFetchSize(fetchSize);
+    }
+
+    /**
+     * Sets the number of rows of the pages queried from now on.
+     */
+    void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+        String select = "SELECT " + classification.getSelectColumns() + ", rowid FROM " + classification.getSelectTable();
+        String where = classification.getSelectWhere();
+        String limit = " ORDER BY rowid LIMIT " + fetchSize;
+        firstPageSql = select + (where != null ? " WHERE " + where : "") + limit;
+        nextPageSql = select + " WHERE " + (where != null ? "(" + where + ") AND " : "") + "rowid > ?" + limit;
+    }
+
+    /**
+     * Runs the query for the first page.
+     *
+     * @return the first page, or null if the query can not be read in pages
+     */
+    Cursor firstPage() throws SQLException {
+        if (!canPage()) {
+            return null;
+        }
+        afterFirstPage = false;
+        pageLimit = fetchSize;
+        Cursor page = db.rawQueryWithFactory(this, firstPageSql, cancellationSignal);
+        if (page.moveToFirst() && page.isNull(page.getColumnCount() - 1)) {
+            // older versions of SQLite return a null rowid for the rows of a view
+            page.close();
+            return null;
+        }
+        page.moveToPosition(-1);
+        return page;
+    }
+
+    /**
+     * Asks SQLite for the plan of the first page.  Preparing it fails if the table has no rowid,
+     * and the plan sorts the rows if the condition uses an index that returns them in another order.
+     *
+     * @return true if the pages can seek on the rowid without sorting.
+     */
+    private boolean canPage() throws SQLException {
+        Cursor plan;
+        try {
+            plan = db.rawQuery("EXPLAIN QUERY PLAN " + firstPageSql, null);
+        } catch (SQLTimeoutException e) {
+            throw e;
+        } catch (SQLException e) {
+            Log.d("SQLDroidKeysetPager: {} can not be read in pages: {}", classification.getSelectTable(), e.getMessage());
+            return false;
+        }
+        try {
+            int detail = plan.getColumnIndex("detail");
+            while (plan.moveToNext()) {
+                String step = plan.getString(detail);
+                if (step != null && step.contains("TEMP B-TREE")) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            plan.close();
+        }
+    }
+
+    /**
+     * Runs the query for the page after the given page, keeping the position of the given page.
+     *
+     * @return the next page, or null if the given page is the last one.
+     * @throws SQLException if the table has no rowid to page by.
+     */
+    Cursor nextPage(Cursor page) throws SQLException {
+        if (page.getCount() < pageLimit) {
+            return null;
+        }
+        int position = page.getPosition();
+        page.moveToLast();
+        int rowIdColumn = page.getColumnCount() - 1;
+        if (page.isNull(rowIdColumn)) {
+            page.moveToPosition(position);
+            throw new SQLException("Can not read " + classification.getSelectTable() + " in pages, it has no rowid");
+        }
+        lastRowId = page.getLong(rowIdColumn);
+        page.moveToPosition(position);
+        afterFirstPage = true;
+        pageLimit = fetchSize;
+        return db.rawQueryWithFactory(this, nextPageSql, cancellationSignal);
+    }
+
+    @Override
+    public Cursor newCursor(android.database.sqlite.SQLiteDatabase db, SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+        if (parameters != null) {
+            parameters.bind(query);
+        } else {
+            query.clearBindings();
+        }
+        if (afterFirstPage) {
+            // the only parameters of a simple select are plain "?", so the rowid is the next one
+            query.bindLong(classification.getParameterCount() + 1, lastRowId);
+        }
+        if (cursorFactory != null) {
+            return cursorFactory.newCursor(db, driver, editTable, query);
+        }
+        return new SQLiteCursor(driver, editTable, query);
+    }
+}
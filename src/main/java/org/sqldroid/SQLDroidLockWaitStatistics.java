@@ -0,0 +1,112 @@
+package org.sqldroid;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the waits for locks of one database: how many operations found it locked, how often they
+ * retried, how many gave up, and how long they waited.  The wait times are also counted in a
+ * histogram, see {@link #getWaitBounds()}.
+ * <p>
+ * The counters are updated without locking and can be read at any time, each reading is a snapshot
+ * of its own.
+ *
+ * @see SQLDroidConnection#getLockWaitStatistics()
+ */
+public class SQLDroidLockWaitStatistics {
+
+    /**
+     * The upper bounds in milliseconds of the buckets of the wait time histogram.  The last bucket
+     * counts the waits of at least the last bound.
+     */
+    private static final long[] WAIT_BOUNDS = {1, 5, 10, 50, 100, 500, 1000, 5000};
+
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    private final AtomicLong maxWaitMillis = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(WAIT_BOUNDS.length + 1);
+
+    SQLDroidLockWaitStatistics() {
+    }
+
+    void retried() {
+        retries.incrementAndGet();
+    }
+
+    /**
+     * Counts an operation that found the database locked, once it succeeded or gave up.
+     */
+    void waited(long millis, boolean timedOut) {
+        waits.incrementAndGet();
+        if (timedOut) {
+            timeouts.incrementAndGet();
+        }
+        totalWaitMillis.addAndGet(millis);
+        long max;
+        while ((max = maxWaitMillis.get()) < millis && !maxWaitMillis.compareAndSet(max, millis)) {
+            // another thread raised the maximum, compare again
+        }
+        int bucket = 0;
+        while (bucket < WAIT_BOUNDS.length && millis >= WAIT_BOUNDS[bucket]) {
+            bucket++;
+        }
+        histogram.incrementAndGet(bucket);
+    }
+
+    /**
+     * @return the number of operations that found the database locked.
+     */
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    /**
+     * @return the number of times an operation tried again after finding the database locked.
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return the number of operations that gave up on a locked database.
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    public long getTotalWaitMillis() {
+        return totalWaitMillis.get();
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis.get();
+    }
+
+    /**
+     * @return a copy of the upper bounds in milliseconds of the buckets of the wait time histogram.
+     * The last bucket counts the waits of at least the last bound.
+     */
+    public static long[] getWaitBounds() {
+        return WAIT_BOUNDS.clone();
+    }
+
+    /**
+     * @return the number of waits per bucket of {@link #getWaitBounds()}: element i counts the waits
+     * shorter than bound i (and not shorter than the bound before), the last element the longer waits.
+     */
+    public long[] getWaitHistogram() {
+        long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return "waits=" + getWaitCount() + " retries=" + getRetryCount() + " timeouts=" + getTimeoutCount()
+                + " totalWaitMillis=" + getTotalWaitMillis() + " maxWaitMillis=" + getMaxWaitMillis();
+    }
+}
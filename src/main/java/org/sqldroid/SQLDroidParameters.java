@@ -0,0 +1,321 @@
+package org.sqldroid;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.database.sqlite.SQLiteProgram;
+import android.database.sqlite.SQLiteQuery;
+
+import java.util.Arrays;
+
+/**
+ * The parameter values of a prepared statement and the rows of its batch.
+ * <p>
+ * Each parameter slot has a type tag, and integer and floating point values are kept in a
+ * <code>long[]</code> and a <code>double[]</code>, so that <code>setInt</code>, <code>setLong</code>
+ * and <code>setDouble</code> do not box their value.  Everything else is kept in an
+ * <code>Object[]</code> and bound with the type mapping of
+ * {@link SQLiteDatabase#bindArgument(SQLiteProgram, int, Object)}.  The batch is stored the same way
+ * in flat arrays with one stretch of slots per row, instead of a list of parameter lists.
+ * <p>
+ * As a cursor factory it binds the current values to a query before the cursor first runs it.
+ */
+class SQLDroidParameters implements CursorFactory {
+
+    private static final byte NULL = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte OBJECT = 3;
+
+    private byte[] types;
+    private long[] longs;
+    private double[] doubles;
+    private Object[] objects;
+
+    /**
+     * The highest parameter index that has been set since the parameters were last cleared.
+     */
+    private int count = 0;
+
+    /**
+     * The number of slots per batch row.  Every row has the width of the widest row added.
+     */
+    private int batchWidth;
+    private int batchSize = 0;
+    private int[] batchCounts = new int[0];
+    private byte[] batchTypes = new byte[0];
+    private long[] batchLongs = new long[0];
+    private double[] batchDoubles = new double[0];
+    private Object[] batchObjects = new Object[0];
+
+    /**
+     * The factory for the cursors of the queries these parameters are bound to, or null for SQLiteCursor.
+     */
+    private CursorFactory cursorFactory;
+
+    /**
+     * @param capacity the expected number of parameters, usually the parameter count of the sql.
+     */
+    SQLDroidParameters(int capacity) {
+        capacity = Math.max(1, capacity);
+        types = new byte[capacity];
+        longs = new long[capacity];
+        doubles = new double[capacity];
+        objects = new Object[capacity];
+        batchWidth = capacity;
+    }
+
+    /**
+     * @return the highest parameter index that has been set.
+     */
+    int getCount() {
+        return count;
+    }
+
+    void setNull(int index) {
+        int slot = slot(index);
+        types[slot] = NULL;
+        objects[slot] = null;
+    }
+
+    void setLong(int index, long value) {
+        int slot = slot(index);
+        types[slot] = LONG;
+        longs[slot] = value;
+        objects[slot] = null;
+    }
+
+    void setDouble(int index, double value) {
+        int slot = slot(index);
+        types[slot] = DOUBLE;
+        doubles[slot] = value;
+        objects[slot] = null;
+    }
+
+    void setObject(int index, Object value) {
+        int slot = slot(index);
+        types[slot] = value == null ? NULL : OBJECT;
+        objects[slot] = value;
+    }
+
+    /**
+     * Returns the slot of a parameter index, growing the storage if the index is beyond it.
+     *
+     * @param index the index of the parameter, starting at 1
+     */
+    private int slot(int index) {
+        if (index > types.length) {
+            int capacity = Math.max(index, types.length * 2);
+            types = Arrays.copyOf(types, capacity);
+            longs = Arrays.copyOf(longs, capacity);
+            doubles = Arrays.copyOf(doubles, capacity);
+            objects = Arrays.copyOf(objects, capacity);
+        }
+        if (index > count) {
+            count = index;
+        }
+        return index - 1;
+    }
+
+    /**
+     * Resets all parameters to unset, which binds them as NULL.
+     */
+    void clear() {
+        Arrays.fill(types, 0, count, NULL);
+        Arrays.fill(objects, 0, count, null);
+        count = 0;
+    }
+
+    /**
+     * @return a copy of the current parameter values, without the batch.
+     */
+    SQLDroidParameters copy() {
+        SQLDroidParameters copy = new SQLDroidParameters(count);
+        System.arraycopy(types, 0, copy.types, 0, count);
+        System.arraycopy(longs, 0, copy.longs, 0, count);
+        System.arraycopy(doubles, 0, copy.doubles, 0, count);
+        System.arraycopy(objects, 0, copy.objects, 0, count);
+        copy.count = count;
+        copy.cursorFactory = cursorFactory;
+        return copy;
+    }
+
+    void setCursorFactory(CursorFactory cursorFactory) {
+        this.cursorFactory = cursorFactory;
+    }
+
+    /**
+     * Binds the current parameter values to a compiled program.
+     */
+    void bind(SQLiteProgram program) {
+        program.clearBindings();
+        bind(program, types, longs, doubles, objects, 0, count, 0);
+    }
+
+    /**
+     * Appends the current parameter values to the batch and clears them.
+     */
+    void addBatchRow() {
+        if (count > batchWidth) {
+            widenBatch(count);
+        }
+        int offset = batchSize * batchWidth;
+        int required = offset + batchWidth;
+        if (required > batchTypes.length) {
+            int capacity = Math.max(required, batchTypes.length * 2);
+            batchTypes = Arrays.copyOf(batchTypes, capacity);
+            batchLongs = Arrays.copyOf(batchLongs, capacity);
+            batchDoubles = Arrays.copyOf(batchDoubles, capacity);
+            batchObjects = Arrays.copyOf(batchObjects, capacity);
+        }
+        if (batchSize == batchCounts.length) {
+            batchCounts = Arrays.copyOf(batchCounts, Math.max(16, batchSize * 2));
+        }
+        batchCounts[batchSize] = count;
+        System.arraycopy(types, 0, batchTypes, offset, count);
+        System.arraycopy(longs, 0, batchLongs, offset, count);
+        System.arraycopy(doubles, 0, batchDoubles, offset, count);
+        System.arraycopy(objects, 0, batchObjects, offset, count);
+        batchSize++;
+        clear();
+    }
+
+    /**
+     * Re-lays the batch rows out with a larger number of slots per row.
+     */
+    private void widenBatch(int width) {
+        int capacity = Math.max(1, batchSize) * width * 2;
+        byte[] widerTypes = new byte[capacity];
+        long[] widerLongs = new long[capacity];
+        double[] widerDoubles = new double[capacity];
+        Object[] widerObjects = new Object[capacity];
+        for (int row = 0; row < batchSize; row++) {
+            System.arraycopy(batchTypes, row * batchWidth, widerTypes, row * width, batchWidth);
+            System.arraycopy(batchLongs, row * batchWidth, widerLongs, row * width, batchWidth);
+            System.arraycopy(batchDoubles, row * batchWidth, widerDoubles, row * width, batchWidth);
+            System.arraycopy(batchObjects, row * batchWidth, widerObjects, row * width, batchWidth);
+        }
+        batchTypes = widerTypes;
+        batchLongs = widerLongs;
+        batchDoubles = widerDoubles;
+        batchObjects = widerObjects;
+        batchWidth = width;
+    }
+
+    /**
+     * @return the number of rows in the batch.
+     */
+    int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Binds the parameter values of a batch row to a compiled program.
+     */
+    void bindBatchRow(SQLiteProgram program, int row) {
+        program.clearBindings();
+        bind(program, batchTypes, batchLongs, batchDoubles, batchObjects, row * batchWidth, batchCounts[row], 0);
+    }
+
+    /**
+     * @return the values of the current parameters, or of a batch row, in the types
+     * <code>execSQL</code> accepts.
+     * @param row the batch row, or -1 for the current parameters
+     */
+    Object[] values(int row) {
+        if (row < 0) {
+            return values(types, longs, doubles, objects, 0, count);
+        }
+        return values(batchTypes, batchLongs, batchDoubles, batchObjects, row * batchWidth, batchCounts[row]);
+    }
+
+    private static Object[] values(byte[] types, long[] longs, double[] doubles, Object[] objects, int offset, int length) {
+        Object[] values = new Object[length];
+        for (int i = 0; i < length; i++) {
+            int slot = offset + i;
+            switch (types[slot]) {
+                case LONG:
+                    values[i] = longs[slot];
+                    break;
+                case DOUBLE:
+                    values[i] = doubles[slot];
+                    break;
+                case OBJECT:
+                    values[i] = objects[slot];
+                    break;
+                default:
+                    break;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Removes all rows from the batch.
+     */
+    void clearBatch() {
+        int used = batchSize * batchWidth;
+        Arrays.fill(batchTypes, 0, used, NULL);
+        Arrays.fill(batchObjects, 0, used, null);
+        batchSize = 0;
+    }
+
+    /**
+     * Binds the parameter values of consecutive batch rows to a compiled program with
+     * <code>rowWidth</code> parameters per row, as for a multi-row insert.
+     */
+    void bindBatchRows(SQLiteProgram program, int firstRow, int rows, int rowWidth) {
+        program.clearBindings();
+        for (int i = 0; i < rows; i++) {
+            int row = firstRow + i;
+            bind(program, batchTypes, batchLongs, batchDoubles, batchObjects, row * batchWidth, batchCounts[row], i * rowWidth);
+        }
+    }
+
+    /**
+     * @return the highest parameter index set in any row of the batch.
+     */
+    int getBatchParameterCount() {
+        int width = 0;
+        for (int row = 0; row < batchSize; row++) {
+            width = Math.max(width, batchCounts[row]);
+        }
+        return width;
+    }
+
+    /**
+     * Binds a stretch of slots to the parameters of a program, starting at parameter index
+     * <code>firstIndex + 1</code>.
+     */
+    private static void bind(SQLiteProgram program, byte[] types, long[] longs, double[] doubles, Object[] objects,
+                             int offset, int length, int firstIndex) {
+        for (int i = 0; i < length; i++) {
+            int slot = offset + i;
+            int index = firstIndex + i + 1;
+            switch (types[slot]) {
+                case LONG:
+                    program.bindLong(index, longs[slot]);
+                    break;
+                case DOUBLE:
+                    program.bindDouble(index, doubles[slot]);
+                    break;
+                case OBJECT:
+                    SQLiteDatabase.bindArgument(program, index, objects[slot]);
+                    break;
+                default:
+                    program.bindNull(index);
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public Cursor newCursor(android.database.sqlite.SQLiteDatabase db, SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+        bind(query);
+        if (cursorFactory != null) {
+            return cursorFactory.newCursor(db, driver, editTable, query);
+        }
+        return new SQLiteCursor(driver, editTable, query);
+    }
+}
@@ -0,0 +1,394 @@
+package org.sqldroid;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * The connection a {@link DroidDataSource} hands out for a borrowed SQLDroidConnection.  It
+ * delegates to the pooled connection until it is closed, and closing it returns the pooled
+ * connection to the data source instead of closing it.
+ * <p>
+ * It keeps the statements created through it, so that the data source can close them, and their
+ * cursors, when the connection is returned.
+ */
+class SQLDroidPooledConnection implements Connection {
+
+    private final DroidDataSource dataSource;
+    private SQLDroidConnection connection;
+    private final List<Statement> statements = new ArrayList<Statement>();
+
+    /**
+     * The settings the pooled connection was opened with, which it gets back when it is returned.
+     */
+    final SQLDroidConnection.Settings settings;
+
+    SQLDroidPooledConnection(DroidDataSource dataSource, SQLDroidConnection connection, SQLDroidConnection.Settings settings) {
+        this.dataSource = dataSource;
+        this.connection = connection;
+        this.settings = settings;
+    }
+
+    /**
+     * @return the pooled connection.
+     * @throws SQLException if this connection was closed.
+     */
+    private SQLDroidConnection connection() throws SQLException {
+        if (connection == null) {
+            throw new SQLException("Connection is closed.");
+        }
+        return connection;
+    }
+
+    private <T extends Statement> T track(T statement) {
+        // the statements report this connection, so that closing theirs returns it to the pool
+        if (statement instanceof SQLDroidStatement) {
+            ((SQLDroidStatement) statement).setOwner(this);
+        } else if (statement instanceof SQLDroidPreparedStatement) {
+            ((SQLDroidPreparedStatement) statement).setOwner(this);
+        }
+        synchronized (statements) {
+            // forget the statements that were closed already, a connection may create many of them
+            for (Iterator<Statement> i = statements.iterator(); i.hasNext(); ) {
+                try {
+                    if (i.next().isClosed()) {
+                        i.remove();
+                    }
+                } catch (SQLException e) {
+                    i.remove();
+                }
+            }
+            statements.add(statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Closes the statements created through this connection that are still open.
+     */
+    void closeStatements() throws SQLException {
+        List<Statement> open;
+        synchronized (statements) {
+            open = new ArrayList<Statement>(statements);
+            statements.clear();
+        }
+        for (Statement statement : open) {
+            if (!statement.isClosed()) {
+                statement.close();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        SQLDroidConnection returned;
+        synchronized (this) {
+            returned = connection;
+            connection = null;
+        }
+        if (returned != null) {
+            dataSource.release(this, returned);
+        }
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return connection == null || connection.isClosed();
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        return track(connection().createStatement());
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        return track(connection().createStatement(resultSetType, resultSetConcurrency));
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return track(connection().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return track(connection().prepareStatement(sql));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        return track(connection().prepareStatement(sql, autoGeneratedKeys));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        return track(connection().prepareStatement(sql, columnIndexes));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        return track(connection().prepareStatement(sql, columnNames));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return track(connection().prepareStatement(sql, resultSetType, resultSetConcurrency));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return track(connection().prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        return connection().prepareCall(sql);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return connection().prepareCall(sql, resultSetType, resultSetConcurrency);
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return connection().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public String nativeSQL(String sql) throws SQLException {
+        return connection().nativeSQL(sql);
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        connection().setAutoCommit(autoCommit);
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return connection().getAutoCommit();
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        connection().commit();
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        connection().rollback();
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return connection().getMetaData();
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        connection().setReadOnly(readOnly);
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return connection().isReadOnly();
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        connection().setCatalog(catalog);
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        return connection().getCatalog();
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+        connection().setTransactionIsolation(level);
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return connection().getTransactionIsolation();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return connection().getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        connection().clearWarnings();
+    }
+
+    @Override
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return connection().getTypeMap();
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        connection().setTypeMap(map);
+    }
+
+    @Override
+    public void setHoldability(int holdability) throws SQLException {
+        connection().setHoldability(holdability);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return connection().getHoldability();
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        return connection().setSavepoint();
+    }
+
+    @Override
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return connection().setSavepoint(name);
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        connection().rollback(savepoint);
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        connection().releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return connection().createClob();
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return connection().createBlob();
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return connection().createNClob();
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return connection().createSQLXML();
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        return connection != null && connection.isValid(timeout);
+    }
+
+    @Override
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        if (connection != null) {
+            connection.setClientInfo(name, value);
+        }
+    }
+
+    @Override
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        if (connection != null) {
+            connection.setClientInfo(properties);
+        }
+    }
+
+    @Override
+    public String getClientInfo(String name) throws SQLException {
+        return connection().getClientInfo(name);
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        return connection().getClientInfo();
+    }
+
+    @Override
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        return connection().createArrayOf(typeName, elements);
+    }
+
+    @Override
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        return connection().createStruct(typeName, attributes);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface != null && (iface.isAssignableFrom(getClass()) || connection().isWrapperFor(iface));
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface != null && iface.isAssignableFrom(getClass())) {
+            return (T) this;
+        }
+        return connection().unwrap(iface);
+    }
+
+    // methods added for JDK7 compilation
+
+    public void setSchema(String schema) throws SQLException {
+        connection().setSchema(schema);
+    }
+
+    public String getSchema() throws SQLException {
+        return connection().getSchema();
+    }
+
+    /**
+     * Aborts the pooled connection, which the data source then drops instead of reusing.
+     */
+    public void abort(Executor executor) throws SQLException {
+        if (executor == null) {
+            throw new SQLException("abort requires an executor");
+        }
+        SQLDroidConnection aborted;
+        synchronized (this) {
+            aborted = connection;
+            connection = null;
+        }
+        if (aborted != null) {
+            aborted.abort(executor);
+            dataSource.release(this, aborted);
+        }
+    }
+
+    public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+        connection().setNetworkTimeout(executor, milliseconds);
+    }
+
+    public int getNetworkTimeout() throws SQLException {
+        return connection().getNetworkTimeout();
+    }
+}
@@ -1,6 +1,9 @@
 package org.sqldroid;
 
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -28,25 +31,48 @@ import java.sql.SQLWarning;
 import java.sql.SQLXML;
 import java.sql.Time;
 import java.sql.Timestamp;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
-import java.util.List;
 
 public class SQLDroidPreparedStatement implements PreparedStatement {
 
     protected SQLiteDatabase db;
     protected SQLDroidConnection sqldroidConnection;
     protected SQLDroidResultSet rs = null;
+
+    /**
+     * The connection the statement was created through, if that is not its SQLDroidConnection
+     * itself, such as the connection a {@link DroidDataSource} hands out.
+     */
+    private Connection owner;
     protected String sql;
-    protected ArrayList<Object> l = new ArrayList<Object>();
-    protected ArrayList<ArrayList<Object>> lBatch = new ArrayList<ArrayList<Object>>();
-    private Integer maxRows = null;
+    protected SQLDroidParameters parameters;
+    private int maxRows = 0;
+    private int fetchSize = 0;
 
     /**
      * True if the sql statement is a select.
      */
     protected boolean isSelect;
 
+    /**
+     * True if the sql statement is an INSERT (or REPLACE).
+     */
+    protected boolean isInsert;
+
+    /**
+     * True if the sql statement is an UPDATE or DELETE.
+     */
+    protected boolean isUpdateOrDelete;
+
+    /**
+     * The statement compiled once for a sql statement that is not a query.  It is bound and executed
+     * on every call of <code>execute()</code> instead of handing the sql text to SQLite again.
+     * Null for queries, which go through rawQuery.  It is taken from and, if this statement is
+     * poolable, returned to the statement cache of the connection.
+     */
+    protected SQLiteStatement statement;
+
     /**
      * True if the sql statement MAY produce a result set.  For example, "create" and "drop" command will
      * produce a "false" value for this.
@@ -71,48 +97,69 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
     private int updateCount = -1;
 
     /**
-     * The ResultSet object containing the last row id generated by the database when executing
+     * The ResultSet object containing the row ids generated by the database when executing
      * an INSERT statement.
      */
     private ResultSet rowIdResultSet = null;
 
+    /**
+     * The row ids returned by the inserts of the current execution, if generated keys are requested.
+     * A batch collects the row ids of all of its rows.
+     */
+    private long[] generatedRowIds = new long[1];
+    private int generatedRowIdCount = 0;
+
     /**
      * The value used for autoGeneratedKeys in Connection.prepareStatement. Defaults to NO_GENERATED_KEYS
      */
     private int autoGeneratedKeys;
-    private boolean poolable = false;
+
+    /**
+     * Prepared statements are poolable by default, see {@link java.sql.Statement#setPoolable(boolean)}.
+     */
+    private boolean poolable = true;
     private boolean closed = false;
 
-    public SQLDroidPreparedStatement(String sql, SQLDroidConnection sqldroid, int autoGeneratedKeys) {
-        this.autoGeneratedKeys = autoGeneratedKeys;
-        Log.v("new SqlDroid prepared statement from " + sqldroid);
-        this.sqldroidConnection = sqldroid;
-        this.db = sqldroid.getDb();
-        setSQL(sql);
-    }
+    /**
+     * The maximum number of parameters of a statement in SQLite, SQLITE_MAX_VARIABLE_NUMBER.
+     */
+    private static final int MAX_VARIABLE_NUMBER = 999;
 
-    private void ensureCap(int n) {
-    }
+    /**
+     * The maximum number of rows of a multi-row insert.  Before SQLite 3.8.8 a multi-row VALUES is a
+     * compound select, which is limited to SQLITE_MAX_COMPOUND_SELECT (500) terms.
+     */
+    private static final int MAX_INSERT_ROWS = 500;
 
-    private void setObj(int n, Object obj) {
+    /**
+     * The savepoint each multi-row insert of a batch runs in.
+     */
+    private static final String BATCH_SAVEPOINT = "\"SQLDROID_BATCH\"";
 
-        // prepared statements count from 1, we count from 0 (in array)
-        n--;
+    private SQLDroidSqlClassification classification;
 
-        // if arraylist is too small we add till it's grand enough
-        // btw, why ain't there a l.setSize(n)?
+    /**
+     * The multi-row insert of <code>rewrittenInsertRows</code> rows that a batch of this single-row
+     * insert was last rewritten to.
+     */
+    private String rewrittenInsertSql;
+    private int rewrittenInsertRows;
 
+    private final SQLDroidCancellation cancellation;
 
-        int additions = n - l.size() + 1;
-        //System.out.println("adding " + additions + " elements");
-        for (int i = 0; i < additions; i++) {
-            // System.out.println("ADD NULL");
-            l.add(null);
-        }
+    private long cursorWindowSize;
+    private SQLDroidCursorFactory cursorFactory;
 
-        //System.out.println("n = " + n + " size now " + l.size() + " we @ " + n);
-        l.set(n, obj);
-        //System.out.println("POST set n = " + n + " size now " + l.size() + " we @ " + n);
+    public SQLDroidPreparedStatement(String sql, SQLDroidConnection sqldroid, int autoGeneratedKeys) throws SQLException {
+        this.autoGeneratedKeys = autoGeneratedKeys;
+        Log.v("new SqlDroid prepared statement from {}", sqldroid);
+        this.sqldroidConnection = sqldroid;
+        this.db = sqldroid.getDb();
+        this.cancellation = new SQLDroidCancellation(sqldroid);
+        this.cursorWindowSize = sqldroid.getCursorWindowSize();
+        setSQL(sql);
+        // compile at prepare time, so that executing the statement doesn't parse the sql again.
+        getStatement();
     }
 
     @Override
@@ -132,26 +179,55 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
      * @param sql the sql to set
      */
     public void setSQL(String sql) {
-        // this is loosely based on the codee in SqlDroidStatement
+        closeStatement();
         this.sql = sql;
-        isSelect = sql.toUpperCase().matches("(?m)(?s)\\s*SELECT.*");
-        potentialResultSet = true;
-        // examples of a failure on the next line (so isSelect is false and potentialResultSet remains true, are PRAGMA and INSERT (why INSERT?)
-        if (!isSelect && (sql.toUpperCase().matches("(?m)(?s)\\s*CREATE.*") || sql.toUpperCase().matches("(?m)(?s)\\s*DROP.*"))) {
-            potentialResultSet = false;
+        classification = SQLDroidSqlClassification.classify(sql);
+        rewrittenInsertSql = null;
+        isSelect = classification.isQuery();
+        isInsert = classification.isInsert();
+        isUpdateOrDelete = classification.isUpdateOrDelete();
+        potentialResultSet = !classification.isDdl();
+        if (parameters == null) {
+            parameters = new SQLDroidParameters(classification.getParameterCount());
+        }
+    }
+
+    /**
+     * Returns the compiled statement for the current sql, compiling it if this has not been done yet.
+     *
+     * @return the compiled statement or null if the sql is a query
+     */
+    protected SQLiteStatement getStatement() throws SQLException {
+        if (statement == null && !isSelect) {
+            statement = sqldroidConnection.acquireStatement(sql);
+        }
+        return statement;
+    }
+
+    /**
+     * Release the compiled statement (if any) and null the statement variable.  The compiled
+     * statement goes back to the statement cache of the connection if this statement is poolable.
+     */
+    protected void closeStatement() {
+        if (statement != null) {
+            if (poolable) {
+                sqldroidConnection.releaseStatement(sql, statement);
+            } else {
+                statement.close();
+            }
+            statement = null;
         }
     }
 
 
     @Override
     public void cancel() throws SQLException {
-        // TODO: This is simplemented by Xerial
-        throw new SQLFeatureNotSupportedException("cancel is not supported");
+        cancellation.cancel();
     }
 
     @Override
     public void clearBatch() throws SQLException {
-        lBatch = new ArrayList<ArrayList<Object>>();
+        parameters.clearBatch();
     }
 
     @Override
@@ -167,44 +243,148 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
             }
         } finally {
             rs = null;
+            closeStatement();
+            cancellation.close();
         }
     }
 
-    private String[] makeArgListQueryString() {
-        if (l == null || l.size() == 0) {
-            return new String[0];
+    @Override
+    public boolean execute() throws SQLException {
+        sqldroidConnection.checkWritable(classification, sql);
+        sqldroidConnection.beginPendingTransaction();
+        updateCount = -1;
+        closeResultSet();
+        if (isSelect) {
+            CancellationSignal signal = cancellation.start();
+            try {
+                rs = query(signal);
+                if (!classification.isSelect()) {
+                    // a query that is not a SELECT, such as a PRAGMA, is run now for its effect
+                    rs.isEmpty();
+                }
+            } catch (OperationCanceledException e) {
+                throw cancellation.canceled(e, signal);
+            }
+        } else {
+            generatedRowIdCount = 0;
+            updateCount = executeStatement(-1);
+            captureGeneratedKeys();
         }
-        // convert our parameter list objects to strings
-        List<String> strList = new ArrayList<String>();
+        return isSelect;
+    }
 
-        for (Object o : l) {
-            strList.add(o.toString());
+    /**
+     * Bind the parameters to the compiled statement and execute it.
+     *
+     * @param batchRow the batch row whose parameters are bound, or -1 for the current parameters.
+     * @return the number of rows changed by an INSERT, UPDATE or DELETE and zero for any other statement.
+     */
+    protected int executeStatement(int batchRow) throws SQLException {
+        if (classification.isAttach()) {
+            db.execSQL(sql, parameters.values(batchRow));
+            return 0;
+        }
+        SQLiteStatement statement = getStatement();
+        if (batchRow < 0) {
+            parameters.bind(statement);
+        } else {
+            parameters.bindBatchRow(statement, batchRow);
+        }
+        if (isInsert && autoGeneratedKeys == PreparedStatement.RETURN_GENERATED_KEYS) {
+            long[] rowIds = SQLDroidStatement.executeInsert(db, statement, sql, classification);
+            if (generatedRowIdCount + rowIds.length > generatedRowIds.length) {
+                generatedRowIds = Arrays.copyOf(generatedRowIds,
+                        Math.max(generatedRowIdCount * 2, generatedRowIdCount + rowIds.length));
+            }
+            System.arraycopy(rowIds, 0, generatedRowIds, generatedRowIdCount, rowIds.length);
+            generatedRowIdCount += rowIds.length;
+            return rowIds.length;
+        } else if (isInsert || isUpdateOrDelete) {
+            return db.executeUpdateDelete(statement, sql);
         }
+        db.execute(statement, sql);
+        return 0;
+    }
 
-        return strList.toArray(new String[1]);
+    /**
+     * Returns the number of rows of the multi-row inserts a batch is executed as, or 1 if the batch
+     * is executed row by row.  A batch is only rewritten if the connection asks for it, the sql is a
+     * single-row insert, no generated keys are requested and no row sets more parameters than the
+     * insert has.
+     */
+    private int rewrittenInsertRows() {
+        if (!sqldroidConnection.isRewriteBatchedInserts() || !classification.isSingleRowInsert()
+                || autoGeneratedKeys == PreparedStatement.RETURN_GENERATED_KEYS
+                || parameters.getBatchParameterCount() > classification.getParameterCount()) {
+            return 1;
+        }
+        int rowParameters = classification.getParameterCount();
+        return rowParameters == 0 ? MAX_INSERT_ROWS : Math.min(MAX_INSERT_ROWS, MAX_VARIABLE_NUMBER / rowParameters);
     }
 
-    private Object[] makeArgListQueryObject() {
-        return l.toArray();
+    /**
+     * Executes consecutive batch rows as one multi-row insert.
+     *
+     * @return the number of rows inserted.
+     */
+    private int executeRewrittenInsert(int firstRow, int rows) throws SQLException {
+        if (rewrittenInsertSql == null || rows != rewrittenInsertRows) {
+            rewrittenInsertSql = rewriteInsert(rows);
+            rewrittenInsertRows = rows;
+        }
+        String insertSql = rewrittenInsertSql;
+        SQLiteStatement insert = sqldroidConnection.acquireStatement(insertSql);
+        try {
+            parameters.bindBatchRows(insert, firstRow, rows, classification.getParameterCount());
+            return db.executeUpdateDelete(insert, insertSql);
+        } finally {
+            if (poolable) {
+                sqldroidConnection.releaseStatement(insertSql, insert);
+            } else {
+                insert.close();
+            }
+        }
     }
 
-    @Override
-    public boolean execute() throws SQLException {
-        updateCount = -1;
-        closeResultSet();
-        // problem, a PRAGMA statement (and maybe others) should also cause a result set
-        if (!isSelect && sql.toUpperCase().matches("(?m)(?s)\\s*PRAGMA.*")) {
-            isSelect = true;
+    /**
+     * Undoes the changes of a failed multi-row insert.
+     *
+     * @return false if the savepoint is gone, because the failure rolled back the whole transaction.
+     */
+    private boolean rollbackToBatchSavepoint() {
+        try {
+            // android takes a statement that starts with ROLLBACK for the end of its transaction, the
+            // comment makes it pass this one to SQLite
+            db.execSQL("/* savepoint */ ROLLBACK TO SAVEPOINT " + BATCH_SAVEPOINT);
+            db.execSQL("RELEASE SAVEPOINT " + BATCH_SAVEPOINT);
+            return true;
+        } catch (SQLException e) {
+            Log.d("SQLDroidPreparedStatement: {} the transaction of the batch was rolled back: {}", Log.THREAD, e.getMessage());
+            return false;
         }
-        if (isSelect) {
-            String limitedSql = sql + (maxRows != null ? " LIMIT " + maxRows : "");
-            Cursor c = db.rawQuery(limitedSql, makeArgListQueryString());
-            rs = new SQLDroidResultSet(c);
-        } else {
-            db.execSQL(sql, makeArgListQueryObject());
-            updateCount = sqldroidConnection.changedRowsCount();
+    }
+
+    /**
+     * @return the sql of this single-row insert with its VALUES row repeated to the given number of rows.
+     */
+    private String rewriteInsert(int rows) {
+        int rowStart = classification.getValuesRowStart();
+        int rowEnd = classification.getValuesRowEnd();
+        StringBuilder insertSql = new StringBuilder(rowStart + rows * (rowEnd - rowStart + 1));
+        insertSql.append(sql, 0, rowEnd);
+        for (int row = 1; row < rows; row++) {
+            insertSql.append(',').append(sql, rowStart, rowEnd);
+        }
+        return insertSql.toString();
+    }
+
+    /**
+     * Make the row ids collected by the last execution available to <code>getGeneratedKeys()</code>.
+     */
+    private void captureGeneratedKeys() throws SQLException {
+        if (autoGeneratedKeys == PreparedStatement.RETURN_GENERATED_KEYS) {
+            rowIdResultSet = SQLDroidResultSet.generatedKeys(generatedRowIds, generatedRowIdCount);
         }
-        return isSelect;
     }
 
     /**
@@ -221,26 +401,79 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
 
     @Override
     public ResultSet executeQuery() throws SQLException {
+        sqldroidConnection.checkWritable(classification, sql);
+        sqldroidConnection.beginPendingTransaction();
         updateCount = -1;
         closeResultSet();
         // Log.d("sqldroid", "executeQuery " + sql);
-        // when querying, all ? values must be converted to Strings for some reason
-        Cursor c = db.rawQuery(sql, makeArgListQueryString());
-        // Log.d("sqldroid", "executeQuery " + 2);
-        rs = new SQLDroidResultSet(c);
+        CancellationSignal signal = cancellation.start();
+        try {
+            rs = query(signal);
+        } catch (OperationCanceledException e) {
+            throw cancellation.canceled(e, signal);
+        }
         // Log.d("sqldroid", "executeQuery " + 3);
         return rs;
     }
 
+    /**
+     * Runs the query with the current parameters, in pages of the fetch size if one is set, keyset
+     * paging is enabled and the sql is a simple select that can be paged.  The pages bind a copy of
+     * the parameters, so that they can be changed while the result set is read.  Otherwise a SELECT
+     * is limited to the maximum number of rows in SQLite.
+     *
+     * @see SQLDroidKeysetPager
+     */
+    private SQLDroidResultSet query(CancellationSignal signal) throws SQLException {
+        SQLDroidResultSet result = null;
+        parameters.setCursorFactory(cursorFactory());
+        if (fetchSize > 0 && sqldroidConnection.isKeysetPaging() && classification.isSimpleSelect()) {
+            SQLDroidKeysetPager pager = new SQLDroidKeysetPager(db, classification, parameters.copy(), fetchSize, signal, cursorFactory);
+            Cursor firstPage = pager.firstPage();
+            if (firstPage != null) {
+                result = new SQLDroidResultSet(firstPage, pager, fetchSize, cancellation, signal);
+            }
+        }
+        if (result == null) {
+            Cursor c = SQLDroidStatement.limitedQuery(db, parameters, classification, sql, maxRows, signal);
+            result = new SQLDroidResultSet(c, cancellation, signal);
+        }
+        result.setMaxRows(maxRows);
+        return result;
+    }
+
+    /**
+     * @return the size in bytes of the cursor windows of the queries of this statement, zero for
+     * the platform default.
+     */
+    public long getCursorWindowSize() {
+        return cursorWindowSize;
+    }
+
+    /**
+     * Sets the size in bytes of the cursor windows of the queries of this statement, zero for the
+     * platform default.  Android only allows this from API 28, before that the size is ignored.
+     *
+     * @see SQLDroidDriver#CURSOR_WINDOW_SIZE
+     */
+    public void setCursorWindowSize(long bytes) throws SQLException {
+        if (bytes < 0) {
+            throw new SQLException("Cursor window size must be >= 0, not " + bytes);
+        }
+        cursorWindowSize = bytes;
+    }
+
+    /**
+     * @return the factory for the cursors of the queries of this statement, or null for android's default.
+     */
+    private SQLDroidCursorFactory cursorFactory() {
+        cursorFactory = SQLDroidCursorFactory.forStatement(cursorFactory, sqldroidConnection.getCursorFactory(), cursorWindowSize);
+        return cursorFactory;
+    }
+
     @Override
     public int executeUpdate() throws SQLException {
-        // TODO we can't count the actual number of updates .... :S
         execute();
-        if (autoGeneratedKeys == PreparedStatement.RETURN_GENERATED_KEYS) {
-            // Capture the generated rowId immediately after executing the (insert) statement
-            rowIdResultSet = sqldroidConnection.getGeneratedRowIdResultSet();
-            return 1;  // This should be more efficient than sqldroidConnection.changedRowsCount()
-        }
         return updateCount;
     }
 
@@ -265,15 +498,100 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
         throw new SQLFeatureNotSupportedException("not implemented");
     }
 
+    /**
+     * Executes the batch through the one compiled statement, reading the update count of each row
+     * from its execution.  In auto-commit mode the whole batch runs in one transaction.  If generated
+     * keys were requested, <code>getGeneratedKeys()</code> returns the row ids of all inserted rows.
+     * <p>
+     * If the connection rewrites batched inserts, the rows of a single-row insert are executed as
+     * multi-row inserts instead, each in a savepoint of its own.  If such an insert fails, the changes
+     * it made before it failed (with a table constraint that is ON CONFLICT FAIL) are rolled back to
+     * the savepoint, and its rows are executed one by one to find the failing row.  If the failure
+     * rolled back the whole transaction (with ON CONFLICT ROLLBACK), the batch stops there.
+     *
+     * @see SQLDroidStatement#executeBatch()
+     * @see SQLDroidDriver#REWRITE_BATCHED_INSERTS
+     */
     @Override
     public int[] executeBatch() throws SQLException {
-        int[] results = new int[lBatch.size()];
-        for (int i = 0; i < lBatch.size(); i++) {
-            updateCount = -1;
-            results[i] = EXECUTE_FAILED;
-            db.execSQL(sql, lBatch.get(i).toArray());
-            results[i] = sqldroidConnection.changedRowsCount();
-            updateCount = results[i];
+        updateCount = -1;
+        closeResultSet();
+        if (isSelect) {
+            throw new SQLException("executeBatch can not be used with a query");
+        }
+        sqldroidConnection.checkWritable(classification, sql);
+        sqldroidConnection.beginPendingTransaction();
+        boolean continueOnError = sqldroidConnection.isContinueBatchOnError();
+        int[] results = new int[parameters.getBatchSize()];
+        SQLException failure = null;
+        int failedRow = -1;
+        generatedRowIds = new long[Math.max(1, results.length)];
+        generatedRowIdCount = 0;
+        int insertRows = rewrittenInsertRows();
+        boolean transactionLost = false;
+        boolean implicitTransaction = sqldroidConnection.getAutoCommit() && !db.inTransaction();
+        if (implicitTransaction) {
+            db.beginTransaction();
+        }
+        try {
+            int singleRowsEnd = 0;
+            for (int row = 0; row < results.length; row++) {
+                int rows = row < singleRowsEnd ? 1 : Math.min(insertRows, results.length - row);
+                if (rows > 1) {
+                    db.execSQL("SAVEPOINT " + BATCH_SAVEPOINT);
+                    try {
+                        int inserted = executeRewrittenInsert(row, rows);
+                        db.execSQL("RELEASE SAVEPOINT " + BATCH_SAVEPOINT);
+                        Arrays.fill(results, row, row + rows, inserted == rows ? 1 : SUCCESS_NO_INFO);
+                        row += rows - 1;
+                        continue;
+                    } catch (SQLException e) {
+                        if (!rollbackToBatchSavepoint()) {
+                            // the conflict rolled back the transaction with the rows before it
+                            Arrays.fill(results, EXECUTE_FAILED);
+                            generatedRowIdCount = 0;
+                            failure = e;
+                            failedRow = row;
+                            transactionLost = true;
+                            break;
+                        }
+                        // execute the rows of the failed insert one by one to find the failing row
+                        singleRowsEnd = row + rows;
+                    }
+                }
+                try {
+                    results[row] = executeStatement(row);
+                } catch (SQLException e) {
+                    results[row] = EXECUTE_FAILED;
+                    if (failure == null) {
+                        failure = e;
+                        failedRow = row;
+                    }
+                    if (!continueOnError) {
+                        break;
+                    }
+                }
+            }
+            if (implicitTransaction && !transactionLost && (failure == null || continueOnError)) {
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            try {
+                if (implicitTransaction) {
+                    db.endTransaction();
+                }
+            } catch (SQLException e) {
+                if (!transactionLost) {
+                    throw e;
+                }
+                // SQLite ended the transaction already, there is nothing left to roll back
+            } finally {
+                clearBatch();
+            }
+        }
+        captureGeneratedKeys();
+        if (failure != null) {
+            throw SQLDroidStatement.batchUpdateException(failure, failedRow, results, implicitTransaction, continueOnError);
         }
         return results;
     }
@@ -294,13 +612,11 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
     @Override
     public int executeUpdate(String thisSql, int autoGeneratedKeys) throws SQLException {
         // System.out.println("sql in SQLDoidPreparedStatement.executeUpdate() is " + sql);
-        db.execSQL((thisSql != null) ? thisSql : sql, makeArgListQueryObject());
-        if (autoGeneratedKeys == PreparedStatement.RETURN_GENERATED_KEYS) {
-            // Capture the generated rowId immediately after executing the (insert) statement
-            rowIdResultSet = sqldroidConnection.getGeneratedRowIdResultSet();
-            return 1;  // This should be more efficient than sqldroidConnection.changedRowsCount()
+        if (thisSql != null) {
+            setSQL(thisSql);
         }
-        return sqldroidConnection.changedRowsCount();
+        this.autoGeneratedKeys = autoGeneratedKeys;
+        return executeUpdate();
     }
 
     @Override
@@ -315,7 +631,11 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
 
     @Override
     public Connection getConnection() throws SQLException {
-        return sqldroidConnection;
+        return owner != null ? owner : sqldroidConnection;
+    }
+
+    void setOwner(Connection owner) {
+        this.owner = owner;
     }
 
     @Override
@@ -326,8 +646,7 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
 
     @Override
     public int getFetchSize() throws SQLException {
-        // TODO: Ensure that this doesn't throw NPE
-        return rs.getFetchSize();
+        return fetchSize;
     }
 
     @Override
@@ -369,7 +688,7 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
 
     @Override
     public int getQueryTimeout() throws SQLException {
-        return 0;
+        return cancellation.getQueryTimeout();
     }
 
     @Override
@@ -433,10 +752,19 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
         rs.setFetchDirection(direction);
     }
 
+    /**
+     * Sets the number of rows to read at a time.  If the connection enables keyset paging, a query of
+     * this statement that is a simple single-table select is then read in pages of that many rows,
+     * ordered by rowid.
+     *
+     * @see SQLDroidStatement#setFetchSize(int)
+     */
     @Override
     public void setFetchSize(int rows) throws SQLException {
-        // TODO: Avoid NPE
-        rs.setFetchSize(rows);
+        if (rows < 0) {
+            throw new SQLException("Fetch size must be >= 0, not " + rows);
+        }
+        fetchSize = rows;
     }
 
     @Override
@@ -449,11 +777,8 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
         ensureNotClosed();
         if (max < 0) {
             throw new SQLException("Max rows must be zero or positive. Got " + max);
-        } else if (max == 0) {
-            maxRows = null;
-        } else {
-            maxRows = max;
         }
+        maxRows = max;
     }
 
     private void ensureNotClosed() throws SQLException {
@@ -462,22 +787,23 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
         }
     }
 
+    /**
+     * Sets the time a query may take from its execution until its result set is closed.  Only
+     * queries are cancelled when their timeout expires, updates run to completion.
+     */
     @Override
     public void setQueryTimeout(int seconds) throws SQLException {
-        throw new UnsupportedOperationException("setQueryTimeout not implemented");
+        cancellation.setQueryTimeout(seconds);
     }
 
     @Override
     public void addBatch() throws SQLException {
-        int n = lBatch.size();
-        lBatch.add(null);
-        lBatch.set(n, l);
-        clearParameters();
+        parameters.addBatchRow();
     }
 
     @Override
     public void clearParameters() throws SQLException {
-        l = new ArrayList<Object>();
+        parameters.clear();
     }
 
     @Override
@@ -550,27 +876,22 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
 
     @Override
     public void setBlob(int parameterIndex, Blob theBlob) throws SQLException {
-        ensureCap(parameterIndex);
-        setObj(parameterIndex, theBlob.getBytes(1, (int) theBlob.length()));
+        parameters.setObject(parameterIndex, theBlob.getBytes(1, (int) theBlob.length()));
     }
 
     @Override
     public void setBoolean(int parameterIndex, boolean theBoolean) throws SQLException {
-        ensureCap(parameterIndex);
-        setObj(parameterIndex, theBoolean);
-
+        parameters.setLong(parameterIndex, theBoolean ? 1 : 0);
     }
 
     @Override
     public void setByte(int parameterIndex, byte theByte) throws SQLException {
-        ensureCap(parameterIndex);
-        setObj(parameterIndex, theByte);
+        parameters.setLong(parameterIndex, theByte);
     }
 
     @Override
     public void setBytes(int parameterIndex, byte[] theBytes) throws SQLException {
-        ensureCap(parameterIndex);
-        setObj(parameterIndex, theBytes);
+        parameters.setObject(parameterIndex, theBytes);
     }
 
     @Override
@@ -580,7 +901,6 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
 
     @Override
     public void setClob(int parameterIndex, Clob theClob) throws SQLException {
-        ensureCap(parameterIndex);
         setString(parameterIndex, theClob.getSubString(1L, (int) theClob.length()));
     }
 
@@ -596,44 +916,37 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
 
     @Override
     public void setDouble(int parameterIndex, double theDouble) throws SQLException {
-        ensureCap(parameterIndex);
-        setObj(parameterIndex, new Double(theDouble));
+        parameters.setDouble(parameterIndex, theDouble);
     }
 
     @Override
     public void setFloat(int parameterIndex, float theFloat) throws SQLException {
-        ensureCap(parameterIndex);
-        setObj(parameterIndex, new Double(theFloat));
+        parameters.setDouble(parameterIndex, theFloat);
     }
 
     @Override
     public void setInt(int parameterIndex, int theInt) throws SQLException {
-        ensureCap(parameterIndex);
-        setObj(parameterIndex, new Long(theInt));
+        parameters.setLong(parameterIndex, theInt);
     }
 
     @Override
     public void setLong(int parameterIndex, long theLong) throws SQLException {
-        ensureCap(parameterIndex);
-        setObj(parameterIndex, new Long(theLong));
+        parameters.setLong(parameterIndex, theLong);
     }
 
     @Override
     public void setNull(int parameterIndex, int sqlType) throws SQLException {
-        ensureCap(parameterIndex);
-        setObj(parameterIndex, null);
+        parameters.setNull(parameterIndex);
     }
 
     @Override
     public void setNull(int paramIndex, int sqlType, String typeName) throws SQLException {
-        ensureCap(paramIndex);
-        setObj(paramIndex, null);
+        parameters.setNull(paramIndex);
     }
 
     @Override
     public void setObject(int parameterIndex, Object theObject) throws SQLException {
-        ensureCap(parameterIndex);
-        setObj(parameterIndex, theObject);
+        parameters.setObject(parameterIndex, theObject);
     }
 
     @Override
@@ -643,7 +956,7 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
 
     @Override
     public void setObject(int parameterIndex, Object theObject, int targetSqlType, int scale) throws SQLException {
-        setObj(parameterIndex, theObject);
+        parameters.setObject(parameterIndex, theObject);
     }
 
     @Override
@@ -653,14 +966,12 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
 
     @Override
     public void setShort(int parameterIndex, short theShort) throws SQLException {
-        ensureCap(parameterIndex);
-        setObj(parameterIndex, new Long(theShort));
+        parameters.setLong(parameterIndex, theShort);
     }
 
     @Override
     public void setString(int parameterIndex, String theString) {
-        ensureCap(parameterIndex);
-        setObj(parameterIndex, theString);
+        parameters.setObject(parameterIndex, theString);
     }
 
     @Override
@@ -676,8 +987,7 @@ public class SQLDroidPreparedStatement implements PreparedStatement {
 
     @Override
     public void setTimestamp(int parameterIndex, Timestamp theTimestamp) throws SQLException {
-        ensureCap(parameterIndex);
-        setObj(parameterIndex, theTimestamp);
+        parameters.setObject(parameterIndex, theTimestamp);
     }
 
     @Override
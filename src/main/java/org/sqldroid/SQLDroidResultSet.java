@@ -1,6 +1,9 @@
 package org.sqldroid;
 
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
@@ -40,11 +43,35 @@ public class SQLDroidResultSet implements ResultSet {
 
     public static boolean dump = false;
 
-    private final Cursor c;
+    private Cursor c;
     private int lastColumnRead; // JDBC style column index starting from 1
 
-    // TODO: Implement behavior (as Xerial driver)
-    private int limitRows = 0;
+    private int fetchSize = 0;
+
+    /**
+     * The maximum number of rows of the result set, zero for no limit.  A SELECT already returns no
+     * more rows than this, but other queries, such as a PRAGMA, are cut off here.
+     */
+    private int maxRows = 0;
+
+    /**
+     * The pager of a result set that is read in pages, or null.  The cursor is then the current page.
+     */
+    private SQLDroidKeysetPager pager;
+    private Cursor prefetchedPage;
+    private boolean lastPage = false;
+
+    /**
+     * The number of rows in the pages before the current page.
+     */
+    private int pageOffset = 0;
+
+    /**
+     * The cancellation of the statement that ran the query and the signal of the query, which the
+     * cursor checks whenever it fills a window, or null if the query can not be cancelled.
+     */
+    private SQLDroidCancellation cancellation;
+    private CancellationSignal cancellationSignal;
 
     public SQLDroidResultSet(Cursor c) throws SQLException {
         this.c = c;
@@ -53,6 +80,94 @@ public class SQLDroidResultSet implements ResultSet {
         }
     }
 
+    SQLDroidResultSet(Cursor c, SQLDroidCancellation cancellation, CancellationSignal cancellationSignal) throws SQLException {
+        this.c = c;
+        this.cancellation = cancellation;
+        this.cancellationSignal = cancellationSignal;
+        if (dump) {
+            dumpResultSet();
+        }
+    }
+
+    /**
+     * Creates a forward only result set that reads the result of a query in pages.
+     *
+     * @param firstPage the first page of the pager
+     */
+    SQLDroidResultSet(Cursor firstPage, SQLDroidKeysetPager pager, int fetchSize,
+                      SQLDroidCancellation cancellation, CancellationSignal cancellationSignal) {
+        this.c = firstPage;
+        this.pager = pager;
+        this.fetchSize = fetchSize;
+        this.cancellation = cancellation;
+        this.cancellationSignal = cancellationSignal;
+    }
+
+    /**
+     * Moves to the first row of the next page that has one.
+     *
+     * @return false if there is no next page, or it is empty.
+     */
+    private boolean nextPage() throws SQLException {
+        while (true) {
+            Cursor page = prefetchedPage;
+            prefetchedPage = null;
+            if (page == null) {
+                page = lastPage ? null : pager.nextPage(c);
+            }
+            if (page == null) {
+                lastPage = true;
+                return false;
+            }
+            pageOffset += c.getCount();
+            c.close();
+            c = page;
+            if (c.moveToNext()) {
+                return true;
+            }
+        }
+    }
+
+    void setMaxRows(int maxRows) {
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * @return true if the current row is the last row before the maximum number of rows.
+     */
+    private boolean atMaxRows() {
+        return maxRows > 0 && pageOffset + c.getPosition() + 1 >= maxRows;
+    }
+
+    /**
+     * @return true if the result has no rows.  This runs a query that is not read in pages to its
+     * end, to count its rows.
+     */
+    boolean isEmpty() {
+        return pageOffset == 0 && c.getCount() == 0;
+    }
+
+    private void checkNotPaged() throws SQLException {
+        if (pager != null) {
+            throw new SQLFeatureNotSupportedException("A ResultSet read in pages is TYPE_FORWARD_ONLY");
+        }
+    }
+
+    /**
+     * Creates an in-memory result set with the row ids generated by inserts, in the shape of the
+     * result of "select last_insert_rowid()".
+     *
+     * @param rowIds the generated row ids
+     * @param count  the number of row ids to use from the array
+     */
+    static SQLDroidResultSet generatedKeys(long[] rowIds, int count) throws SQLException {
+        MatrixCursor cursor = new MatrixCursor(new String[]{"last_insert_rowid()"}, count);
+        for (int i = 0; i < count; i++) {
+            cursor.addRow(new Object[]{rowIds[i]});
+        }
+        return new SQLDroidResultSet(cursor);
+    }
+
     private void dumpResultSet() throws SQLException {
         ResultSet rs = this;
         boolean headerDrawn = false;
@@ -95,21 +210,27 @@ public class SQLDroidResultSet implements ResultSet {
 
     @Override
     public void afterLast() throws SQLException {
+        checkNotPaged();
         try {
             c.moveToLast();
             c.moveToNext();
         } catch (android.database.SQLException e) {
             throw SQLDroidConnection.chainException(e);
+        } catch (OperationCanceledException e) {
+            throw canceled(e);
         }
     }
 
     @Override
     public void beforeFirst() throws SQLException {
+        checkNotPaged();
         try {
             c.moveToFirst();
             c.moveToPrevious();
         } catch (android.database.SQLException e) {
             throw SQLDroidConnection.chainException(e);
+        } catch (OperationCanceledException e) {
+            throw canceled(e);
         }
     }
 
@@ -126,6 +247,13 @@ public class SQLDroidResultSet implements ResultSet {
     @Override
     public void close() throws SQLException {
         try {
+            if (cancellation != null) {
+                cancellation.finish(cancellationSignal);
+            }
+            if (prefetchedPage != null) {
+                prefetchedPage.close();
+                prefetchedPage = null;
+            }
             if (c != null) {
                 c.close();
             }
@@ -134,6 +262,18 @@ public class SQLDroidResultSet implements ResultSet {
         }
     }
 
+    /**
+     * Translates the cancellation of the query while the cursor filled a window.
+     */
+    private SQLException canceled(OperationCanceledException e) {
+        if (cancellation != null) {
+            return cancellation.canceled(e, cancellationSignal);
+        }
+        SQLException canceled = new SQLException("Query was cancelled");
+        canceled.initCause(e);
+        return canceled;
+    }
+
     @Override
     public void deleteRow() throws SQLException {
         // Not supported by SQLite
@@ -152,10 +292,13 @@ public class SQLDroidResultSet implements ResultSet {
 
     @Override
     public boolean first() throws SQLException {
+        checkNotPaged();
         try {
             return c.moveToFirst();
         } catch (android.database.SQLException e) {
             throw SQLDroidConnection.chainException(e);
+        } catch (OperationCanceledException e) {
+            throw canceled(e);
         }
     }
 
@@ -392,7 +535,7 @@ public class SQLDroidResultSet implements ResultSet {
 
     @Override
     public int getFetchSize() throws SQLException {
-        return limitRows;
+        return fetchSize;
     }
 
     @Override
@@ -445,7 +588,7 @@ public class SQLDroidResultSet implements ResultSet {
 
     @Override
     public ResultSetMetaData getMetaData() throws SQLException {
-        return new SQLDroidResultSetMetaData(c);
+        return new SQLDroidResultSetMetaData(c, pager != null ? SQLDroidKeysetPager.HIDDEN_COLUMNS : 0);
     }
 
     @Override
@@ -512,7 +655,7 @@ public class SQLDroidResultSet implements ResultSet {
     public int getRow() throws SQLException {
         try {
             // convert to jdbc standard (counting from one)
-            return c.getPosition() + 1;
+            return pageOffset + c.getPosition() + 1;
         } catch (android.database.SQLException e) {
             throw SQLDroidConnection.chainException(e);
         }
@@ -682,6 +825,8 @@ public class SQLDroidResultSet implements ResultSet {
             return c.isAfterLast();
         } catch (android.database.SQLException e) {
             throw SQLDroidConnection.chainException(e);
+        } catch (OperationCanceledException e) {
+            throw canceled(e);
         }
     }
 
@@ -694,6 +839,8 @@ public class SQLDroidResultSet implements ResultSet {
             return c.isBeforeFirst();
         } catch (android.database.SQLException e) {
             throw SQLDroidConnection.chainException(e);
+        } catch (OperationCanceledException e) {
+            throw canceled(e);
         }
     }
 
@@ -703,9 +850,11 @@ public class SQLDroidResultSet implements ResultSet {
             return false;
         }
         try {
-            return c.isFirst();
+            return pageOffset == 0 && c.isFirst();
         } catch (android.database.SQLException e) {
             throw SQLDroidConnection.chainException(e);
+        } catch (OperationCanceledException e) {
+            throw canceled(e);
         }
     }
 
@@ -715,18 +864,36 @@ public class SQLDroidResultSet implements ResultSet {
             return false;
         }
         try {
-            return c.isLast();
+            if (atMaxRows() && !c.isAfterLast()) {
+                return true;
+            }
+            if (pager == null || !c.isLast() || lastPage) {
+                return c.isLast();
+            }
+            // the last row of a page is the last row of the result if there is no next page with rows
+            if (prefetchedPage == null) {
+                prefetchedPage = pager.nextPage(c);
+                if (prefetchedPage == null) {
+                    lastPage = true;
+                }
+            }
+            return prefetchedPage == null || prefetchedPage.getCount() == 0;
         } catch (android.database.SQLException e) {
             throw SQLDroidConnection.chainException(e);
+        } catch (OperationCanceledException e) {
+            throw canceled(e);
         }
     }
 
     @Override
     public boolean last() throws SQLException {
+        checkNotPaged();
         try {
             return c.moveToLast();
         } catch (android.database.SQLException e) {
             throw SQLDroidConnection.chainException(e);
+        } catch (OperationCanceledException e) {
+            throw canceled(e);
         }
     }
 
@@ -743,18 +910,27 @@ public class SQLDroidResultSet implements ResultSet {
     @Override
     public boolean next() throws SQLException {
         try {
-            return c.moveToNext();
+            if (atMaxRows()) {
+                c.moveToPosition(c.getCount());
+                return false;
+            }
+            return c.moveToNext() || (pager != null && nextPage());
         } catch (android.database.SQLException e) {
             throw SQLDroidConnection.chainException(e);
+        } catch (OperationCanceledException e) {
+            throw canceled(e);
         }
     }
 
     @Override
     public boolean previous() throws SQLException {
+        checkNotPaged();
         try {
             return c.moveToPrevious();
         } catch (android.database.SQLException e) {
             throw SQLDroidConnection.chainException(e);
+        } catch (OperationCanceledException e) {
+            throw canceled(e);
         }
     }
 
@@ -796,11 +972,13 @@ public class SQLDroidResultSet implements ResultSet {
 
     @Override
     public void setFetchSize(int rows) throws SQLException {
-        // TODO: Implement as max row number for next()
-        if (rows != 0) {
-            throw new UnsupportedOperationException("Not implemented yet");
+        if (rows < 0) {
+            throw new SQLException("Fetch size must be >= 0, not " + rows);
+        }
+        fetchSize = rows;
+        if (pager != null && rows > 0) {
+            pager.setFetchSize(rows);
         }
-        limitRows = rows;
     }
 
     @Override
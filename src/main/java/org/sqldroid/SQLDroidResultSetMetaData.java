@@ -10,6 +10,7 @@ import java.sql.Types;
 public class SQLDroidResultSetMetaData implements ResultSetMetaData {
 
     private final Cursor cursor;
+    private final int hiddenColumns;
     private static Method getType;
 
     static {
@@ -21,10 +22,18 @@ public class SQLDroidResultSetMetaData implements ResultSetMetaData {
     }
 
     public SQLDroidResultSetMetaData(Cursor cursor) {
+        this(cursor, 0);
+    }
+
+    /**
+     * @param hiddenColumns the number of trailing columns of the cursor that are not part of the result
+     */
+    SQLDroidResultSetMetaData(Cursor cursor, int hiddenColumns) {
         if (cursor == null) {
             throw new NullPointerException("Cursor required to be not null.");
         }
         this.cursor = cursor;
+        this.hiddenColumns = hiddenColumns;
     }
 
     static int getType(Cursor cursor, int column) {
@@ -51,7 +60,7 @@ public class SQLDroidResultSetMetaData implements ResultSetMetaData {
 
     @Override
     public int getColumnCount() throws SQLException {
-        return cursor.getColumnCount();
+        return cursor.getColumnCount() - hiddenColumns;
     }
 
     @Override
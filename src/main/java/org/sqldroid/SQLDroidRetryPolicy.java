@@ -0,0 +1,30 @@
+package org.sqldroid;
+
+/**
+ * Decides how long an operation waits for a locked database before it tries again, and when it
+ * gives up.
+ * <p>
+ * A policy is shared by all connections to a database, and called concurrently by their threads.
+ * It is set with the {@link SQLDroidDriver#RETRY_POLICY} property of the connection that opens the
+ * database.
+ *
+ * @see SQLDroidBackoffRetryPolicy
+ */
+public interface SQLDroidRetryPolicy {
+
+    /**
+     * @return the time in milliseconds SQLite itself waits for a lock before it reports the database
+     * as locked, set with <code>PRAGMA busy_timeout</code> when the database is opened.  Zero keeps
+     * the busy timeout of android.
+     */
+    long getBusyTimeout();
+
+    /**
+     * Called each time an operation found the database locked.
+     *
+     * @param attempt the number of attempts of the operation so far, starting with 1
+     * @param waited  the time in milliseconds since the first attempt
+     * @return the time in milliseconds to wait before the next attempt, or a negative value to give up.
+     */
+    long nextDelay(int attempt, long waited);
+}
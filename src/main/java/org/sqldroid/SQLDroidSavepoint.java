@@ -0,0 +1,55 @@
+package org.sqldroid;
+
+import java.sql.SQLException;
+import java.sql.Savepoint;
+
+/**
+ * A savepoint inside the transaction of a connection, either named by the application or
+ * anonymous with a numeric id.
+ *
+ * @see SQLDroidConnection#setSavepoint()
+ */
+class SQLDroidSavepoint implements Savepoint {
+
+    private final int id;
+    private final String name;
+
+    /**
+     * @param id   the id of the savepoint, unique for its connection
+     * @param name the name given by the application, or null for an anonymous savepoint
+     */
+    SQLDroidSavepoint(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    @Override
+    public int getSavepointId() throws SQLException {
+        if (name != null) {
+            throw new SQLException("Savepoint is named: " + name);
+        }
+        return id;
+    }
+
+    @Override
+    public String getSavepointName() throws SQLException {
+        if (name == null) {
+            throw new SQLException("Savepoint is not named, its id is " + id);
+        }
+        return name;
+    }
+
+    /**
+     * @return the identifier of the savepoint in SAVEPOINT, ROLLBACK TO and RELEASE.
+     */
+    String identifier() {
+        // the id keeps two savepoints with the same name apart
+        String identifier = "SQLDROID_" + id + (name != null ? "_" + name : "");
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    @Override
+    public String toString() {
+        return name != null ? name : "savepoint " + id;
+    }
+}
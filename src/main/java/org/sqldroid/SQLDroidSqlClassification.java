@@ -0,0 +1,698 @@
+package org.sqldroid;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The kind of a sql statement as far as the driver cares: whether it produces a result set, whether
+ * it is an INSERT, UPDATE or DELETE whose update count can be read from its execution, and so on.
+ * <p>
+ * The classification is done by a single pass over the sql that skips whitespace, comments, string
+ * literals and quoted identifiers and looks at the leading keyword.  For a WITH statement the keyword
+ * after the common table expressions decides, and an INSERT, UPDATE or DELETE with a RETURNING clause
+ * is a query.  The same pass counts the parameters, so that parameter buffers can be sized up front.
+ * This replaces upper casing the sql and matching it against regular expressions, which
+ * allocated a copy of the whole sql every time.
+ * <p>
+ * Classifications are cached per sql string, since the same sql is typically executed many times.
+ * Every statement execution looks its sql up, so the cache is a concurrent map that is read without
+ * a lock.  When it is full an arbitrary entry makes room, rather than the least recently used one,
+ * which would need a lock to record each use.
+ */
+final class SQLDroidSqlClassification {
+
+    enum Kind {
+        SELECT, INSERT, UPDATE, DELETE, DDL, PRAGMA, EXPLAIN, TRANSACTION, ATTACH, OTHER
+    }
+
+    /**
+     * The maximum number of classifications kept in the cache.
+     */
+    private static final int CACHE_SIZE = 256;
+
+    private static final ConcurrentMap<String, SQLDroidSqlClassification> cache =
+            new ConcurrentHashMap<String, SQLDroidSqlClassification>(CACHE_SIZE);
+
+    /**
+     * The pragmas that take an argument but only read, such as <code>PRAGMA table_info(t)</code>.
+     */
+    private static final Set<String> READING_PRAGMAS_WITH_ARGUMENT = new HashSet<String>(Arrays.asList(
+            "table_info", "table_xinfo", "table_list", "index_info", "index_xinfo", "index_list",
+            "foreign_key_list", "foreign_key_check", "integrity_check", "quick_check"));
+
+    /**
+     * The pragmas that write to the database without an argument.
+     */
+    private static final Set<String> WRITING_PRAGMAS = new HashSet<String>(Arrays.asList(
+            "wal_checkpoint", "optimize", "incremental_vacuum"));
+
+    private final Kind kind;
+    private final boolean returning;
+    private final boolean writingPragma;
+
+    /**
+     * Whether the result columns of a SELECT have distinct names, or null until a query learned it.
+     */
+    private volatile Boolean distinctColumnNames;
+    private final int parameterCount;
+
+    /**
+     * The index after the last token of the first statement, before a ";" or a trailing comment.
+     */
+    private final int statementEnd;
+
+    /**
+     * The start and end of the row of a single-row "INSERT ... VALUES (...)", or -1.
+     */
+    private final int valuesRowStart;
+    private final int valuesRowEnd;
+
+    /**
+     * The parts of a simple single-table SELECT, or null.
+     */
+    private final String selectColumns;
+    private final String selectTable;
+    private final String selectWhere;
+
+    private SQLDroidSqlClassification(Kind kind, boolean returning, boolean writingPragma, int parameterCount,
+                                      int statementEnd, int valuesRowStart, int valuesRowEnd,
+                                      String selectColumns, String selectTable, String selectWhere) {
+        this.kind = kind;
+        this.returning = returning;
+        this.writingPragma = writingPragma;
+        this.parameterCount = parameterCount;
+        this.statementEnd = statementEnd;
+        this.valuesRowStart = valuesRowStart;
+        this.valuesRowEnd = valuesRowEnd;
+        this.selectColumns = selectColumns;
+        this.selectTable = selectTable;
+        this.selectWhere = selectWhere;
+    }
+
+    /**
+     * Returns the classification of the sql, from the cache if the sql was classified before.
+     */
+    static SQLDroidSqlClassification classify(String sql) {
+        SQLDroidSqlClassification classification = cache.get(sql);
+        if (classification != null) {
+            return classification;
+        }
+        classification = new Lexer(sql).classify();
+        if (cache.size() >= CACHE_SIZE) {
+            Iterator<String> cached = cache.keySet().iterator();
+            if (cached.hasNext()) {
+                cache.remove(cached.next());
+            }
+        }
+        cache.put(sql, classification);
+        return classification;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return true if the statement has a RETURNING clause.
+     */
+    boolean hasReturning() {
+        return returning;
+    }
+
+    /**
+     * @return the number of parameters of the statement.  A named parameter is counted every time
+     * it occurs, so this is an upper bound for statements with repeated named parameters.
+     */
+    int getParameterCount() {
+        return parameterCount;
+    }
+
+    /**
+     * Returns the sql of a SELECT wrapped so that SQLite returns at most <code>maxRows</code> rows:
+     * <pre>
+     * SELECT * FROM (sql) LIMIT maxRows
+     * </pre>
+     * The sql may have a LIMIT of its own, and anything after its first statement, such as a ";"
+     * or a comment, is dropped.  SQLite renames duplicate column names in the subquery, so this is
+     * only equivalent for a SELECT whose result columns have distinct names.
+     *
+     * @param sql the sql of this classification
+     * @return the wrapped sql, or null if the statement is not a SELECT.
+     */
+    String withMaxRows(String sql, int maxRows) {
+        if (kind != Kind.SELECT) {
+            return null;
+        }
+        return "SELECT * FROM (" + sql.substring(0, statementEnd) + ") LIMIT " + maxRows;
+    }
+
+    /**
+     * @return whether the result columns of this SELECT have distinct names, or null if that is not
+     * known yet.
+     * @see SQLDroidStatement#limitedQuery
+     */
+    Boolean hasDistinctColumnNames() {
+        return distinctColumnNames;
+    }
+
+    void setDistinctColumnNames(boolean distinctColumnNames) {
+        this.distinctColumnNames = distinctColumnNames;
+    }
+
+    /**
+     * @return true if the statement produces a result set and so has to be run as a query.
+     */
+    boolean isQuery() {
+        switch (kind) {
+            case SELECT:
+            case PRAGMA:
+            case EXPLAIN:
+                return true;
+            case INSERT:
+            case UPDATE:
+            case DELETE:
+                return returning;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if the statement may change the database: anything but a query, a query with a
+     * RETURNING clause, and a PRAGMA that sets a value, such as <code>PRAGMA user_version = 5</code>, or
+     * that writes, such as <code>PRAGMA wal_checkpoint</code>.  A PRAGMA with an argument is taken to
+     * set a value, unless it is one of the pragmas that look up a table or index.
+     */
+    boolean isWrite() {
+        return !isQuery() || returning || writingPragma;
+    }
+
+    /**
+     * @return true if the statement is a SELECT or VALUES, which only reads, unlike the other queries
+     * such as a PRAGMA or a statement with a RETURNING clause.
+     */
+    boolean isSelect() {
+        return kind == Kind.SELECT;
+    }
+
+    /**
+     * @return true if the statement is an INSERT or REPLACE.
+     */
+    boolean isInsert() {
+        return kind == Kind.INSERT;
+    }
+
+    /**
+     * @return true if the statement is an INSERT of a single "VALUES (...)" row that is the end of
+     * the statement and holds all of its parameters, which are all plain "?" parameters, and with no
+     * OR FAIL or OR ROLLBACK conflict clause.  Such an INSERT can be turned into a multi-row INSERT
+     * by repeating the row.  A conflict clause of the table may still keep the rows before a failing
+     * one, so the multi-row INSERT has to run in a savepoint.
+     */
+    boolean isSingleRowInsert() {
+        return valuesRowStart >= 0;
+    }
+
+    /**
+     * @return the index of the "(" of the row of a single-row INSERT.
+     */
+    int getValuesRowStart() {
+        return valuesRowStart;
+    }
+
+    /**
+     * @return the index after the ")" of the row of a single-row INSERT.
+     */
+    int getValuesRowEnd() {
+        return valuesRowEnd;
+    }
+
+    /**
+     * @return true if the statement is a "SELECT columns FROM table [WHERE condition]" whose columns
+     * are plain column names or "*", with no join, grouping, ordering or limit, and only plain "?"
+     * parameters.  Adding "rowid" to the columns of such a SELECT and "rowid &gt; ?" to its condition
+     * does not change the rows it returns, so it can be read in pages ordered by rowid.
+     */
+    boolean isSimpleSelect() {
+        return selectTable != null;
+    }
+
+    /**
+     * @return the columns of a simple SELECT, as written.
+     */
+    String getSelectColumns() {
+        return selectColumns;
+    }
+
+    /**
+     * @return the table of a simple SELECT, as written.
+     */
+    String getSelectTable() {
+        return selectTable;
+    }
+
+    /**
+     * @return the WHERE condition of a simple SELECT, as written, or null if it has none.
+     */
+    String getSelectWhere() {
+        return selectWhere;
+    }
+
+    /**
+     * @return true if the statement is an UPDATE or DELETE.
+     */
+    boolean isUpdateOrDelete() {
+        return kind == Kind.UPDATE || kind == Kind.DELETE;
+    }
+
+    /**
+     * @return true if the statement is an ATTACH or DETACH, which android only handles in
+     * <code>execSQL</code>: there it turns off write-ahead logging, so that the attached database is
+     * seen by every connection of its pool, not only by the one that executes the statement.
+     */
+    boolean isAttach() {
+        return kind == Kind.ATTACH;
+    }
+
+    /**
+     * @return true if the statement creates, alters or drops a schema object.
+     */
+    boolean isDdl() {
+        return kind == Kind.DDL;
+    }
+
+    @Override
+    public String toString() {
+        return kind + (returning ? " RETURNING" : "") + " (" + parameterCount + " parameters)";
+    }
+
+    /**
+     * Walks over the tokens of the first statement of the sql, skipping whitespace, comments,
+     * literals and quoted identifiers.  Words are compared in place, so classifying allocates
+     * nothing but the result.
+     */
+    private static final class Lexer {
+        private static final int END = 0;
+        private static final int WORD = 1;
+        private static final int OPEN = 2;
+        private static final int CLOSE = 3;
+        private static final int PARAMETER = 4;
+        private static final int OTHER = 5;
+
+        private final String sql;
+        private final int length;
+        private int pos = 0;
+        private int depth = 0;
+        private int wordStart;
+        private int tokenStart;
+        private int tokenEnd;
+        private int parameterCount = 0;
+        private boolean namedOrNumberedParameters = false;
+
+        Lexer(String sql) {
+            this.sql = sql;
+            this.length = sql.length();
+        }
+
+        SQLDroidSqlClassification classify() {
+            Kind kind = nextWord() ? kindOfWord() : Kind.OTHER;
+            if (kind == Kind.SELECT && wordIs("SELECT")) {
+                return classifySelect();
+            }
+            if (kind == null) {
+                // WITH: the first statement keyword after the common table expressions decides
+                kind = Kind.OTHER;
+                while (nextWord()) {
+                    if (depth == 0) {
+                        Kind mainKind = kindOfWord();
+                        if (mainKind == Kind.SELECT || mainKind == Kind.INSERT
+                                || mainKind == Kind.UPDATE || mainKind == Kind.DELETE) {
+                            kind = mainKind;
+                            break;
+                        }
+                    }
+                }
+            }
+            boolean returning = false;
+            boolean dml = kind == Kind.INSERT || kind == Kind.UPDATE || kind == Kind.DELETE;
+            // the name of a PRAGMA, up to its "=" or "(", if any
+            String pragmaName = null;
+            boolean pragmaArgument = false;
+            boolean pragmaAssignment = false;
+            // the state of looking for the row of a single-row INSERT ... VALUES (...)
+            boolean valuesSeen = false;
+            int valuesRowStart = kind == Kind.INSERT && parameterCount == 0 ? -1 : -2;
+            int valuesRowEnd = -1;
+            int token;
+            while ((token = nextToken()) != END) {
+                if (token == WORD && dml && !returning && depth == 0 && wordIs("RETURNING")) {
+                    returning = true;
+                }
+                if (kind == Kind.PRAGMA && !pragmaArgument) {
+                    if (token == WORD) {
+                        pragmaName = sql.substring(wordStart, pos).toLowerCase(Locale.ROOT);
+                    } else if (token == OPEN || (token == OTHER && sql.charAt(tokenStart) == '=')) {
+                        pragmaArgument = true;
+                        pragmaAssignment = token == OTHER;
+                    }
+                }
+                if (valuesRowStart == -2) {
+                    continue;
+                }
+                if (valuesRowEnd >= 0) {
+                    // anything after the row: more rows, an upsert clause, RETURNING...
+                    valuesRowStart = -2;
+                } else if (valuesRowStart >= 0) {
+                    if (token == CLOSE && depth == 0) {
+                        valuesRowEnd = pos;
+                    }
+                } else if (valuesSeen) {
+                    valuesRowStart = token == OPEN ? pos - 1 : -2;
+                } else if (token == WORD && depth == 0) {
+                    if (wordIs("VALUES")) {
+                        valuesSeen = true;
+                    } else if (wordIs("SELECT") || wordIs("DEFAULT") || wordIs("FAIL") || wordIs("ROLLBACK")) {
+                        // no VALUES row, or a conflict clause that keeps or rolls back more than the failing statement
+                        valuesRowStart = -2;
+                    }
+                }
+            }
+            if (valuesRowEnd < 0 || namedOrNumberedParameters) {
+                valuesRowStart = -1;
+                valuesRowEnd = -1;
+            }
+            boolean writingPragma = kind == Kind.PRAGMA && (pragmaAssignment || WRITING_PRAGMAS.contains(pragmaName)
+                    || pragmaArgument && !READING_PRAGMAS_WITH_ARGUMENT.contains(pragmaName));
+            return new SQLDroidSqlClassification(kind, returning, writingPragma, parameterCount, tokenEnd,
+                    valuesRowStart, valuesRowEnd, null, null, null);
+        }
+
+        /**
+         * Classifies the rest of a statement that starts with SELECT, looking for the parts of a
+         * simple single-table SELECT.
+         */
+        private SQLDroidSqlClassification classifySelect() {
+            int columnsStart = pos;
+            int columnsEnd = -1;
+            int tableStart = -1;
+            int tableEnd = -1;
+            int whereStart = -1;
+            boolean simple = true;
+            int token;
+            while ((token = nextToken()) != END) {
+                if (!simple) {
+                    continue;
+                }
+                if (columnsEnd < 0) {
+                    // the columns: names, "*", "table.*" and aliases, but no function calls, which may
+                    // be aggregates, and no DISTINCT
+                    if (token == WORD) {
+                        if (wordIs("FROM")) {
+                            columnsEnd = tokenStart;
+                        } else if (wordIs("DISTINCT") || wordIs("ALL")) {
+                            simple = false;
+                        }
+                    } else {
+                        char c = sql.charAt(tokenStart);
+                        simple = token == OTHER && (c == '*' || c == ',' || c == '.' || c == '"' || c == '`' || c == '[');
+                    }
+                } else if (tableEnd < 0) {
+                    // the table, possibly with its schema
+                    char c = sql.charAt(tokenStart);
+                    if (token == WORD || (token == OTHER && (c == '"' || c == '`' || c == '[' || c == '.'))) {
+                        if (tableStart < 0) {
+                            tableStart = tokenStart;
+                        }
+                        if (token == WORD && wordIs("WHERE") && tableStart != tokenStart) {
+                            tableEnd = tokenStart;
+                            whereStart = pos;
+                        }
+                    } else {
+                        simple = false;
+                    }
+                } else if (token == WORD && depth == 0 && (wordIs("GROUP") || wordIs("ORDER") || wordIs("LIMIT")
+                        || wordIs("HAVING") || wordIs("WINDOW") || wordIs("UNION") || wordIs("INTERSECT") || wordIs("EXCEPT"))) {
+                    simple = false;
+                }
+            }
+            if (columnsEnd < 0 || tableStart < 0 || namedOrNumberedParameters) {
+                simple = false;
+            }
+            if (!simple) {
+                return new SQLDroidSqlClassification(Kind.SELECT, false, false, parameterCount, tokenEnd, -1, -1, null, null, null);
+            }
+            String table;
+            String where = null;
+            if (tableEnd < 0) {
+                table = sql.substring(tableStart, tokenEnd).trim();
+            } else {
+                table = sql.substring(tableStart, tableEnd).trim();
+                where = sql.substring(whereStart, Math.max(whereStart, tokenEnd)).trim();
+            }
+            if (!isTableName(table) || "".equals(where)) {
+                return new SQLDroidSqlClassification(Kind.SELECT, false, false, parameterCount, tokenEnd, -1, -1, null, null, null);
+            }
+            return new SQLDroidSqlClassification(Kind.SELECT, false, false, parameterCount, tokenEnd, -1, -1,
+                    sql.substring(columnsStart, columnsEnd).trim(), table, where);
+        }
+
+        /**
+         * @return true if the text is a table name, possibly with a schema, and not followed by an
+         * alias, join or index clause.
+         */
+        private static boolean isTableName(String table) {
+            boolean name = false;
+            for (int i = 0; i < table.length(); i++) {
+                char c = table.charAt(i);
+                if (c == '"' || c == '`' || c == '[') {
+                    int end = table.indexOf(c == '[' ? ']' : c, i + 1);
+                    if (name || end < 0) {
+                        return false;
+                    }
+                    i = end;
+                    name = true;
+                } else if (c == '.') {
+                    if (!name) {
+                        return false;
+                    }
+                    name = false;
+                } else if (isWordPart(c)) {
+                    if (name && !isWordPart(table.charAt(i - 1))) {
+                        return false;
+                    }
+                    name = true;
+                } else {
+                    // whitespace between words: an alias or a join
+                    return false;
+                }
+            }
+            return name;
+        }
+
+        /**
+         * @return the kind of statement the current word starts, null for WITH.
+         */
+        private Kind kindOfWord() {
+            switch (pos - wordStart) {
+                case 3:
+                    if (wordIs("END")) {
+                        return Kind.TRANSACTION;
+                    }
+                    break;
+                case 4:
+                    if (wordIs("WITH")) {
+                        return null;
+                    } else if (wordIs("DROP")) {
+                        return Kind.DDL;
+                    }
+                    break;
+                case 5:
+                    if (wordIs("ALTER")) {
+                        return Kind.DDL;
+                    } else if (wordIs("BEGIN")) {
+                        return Kind.TRANSACTION;
+                    }
+                    break;
+                case 6:
+                    if (wordIs("SELECT") || wordIs("VALUES")) {
+                        return Kind.SELECT;
+                    } else if (wordIs("INSERT")) {
+                        return Kind.INSERT;
+                    } else if (wordIs("UPDATE")) {
+                        return Kind.UPDATE;
+                    } else if (wordIs("DELETE")) {
+                        return Kind.DELETE;
+                    } else if (wordIs("CREATE")) {
+                        return Kind.DDL;
+                    } else if (wordIs("PRAGMA")) {
+                        return Kind.PRAGMA;
+                    } else if (wordIs("COMMIT")) {
+                        return Kind.TRANSACTION;
+                    } else if (wordIs("ATTACH") || wordIs("DETACH")) {
+                        return Kind.ATTACH;
+                    }
+                    break;
+                case 7:
+                    if (wordIs("REPLACE")) {
+                        return Kind.INSERT;
+                    } else if (wordIs("EXPLAIN")) {
+                        return Kind.EXPLAIN;
+                    } else if (wordIs("RELEASE")) {
+                        return Kind.TRANSACTION;
+                    }
+                    break;
+                case 8:
+                    if (wordIs("ROLLBACK")) {
+                        return Kind.TRANSACTION;
+                    }
+                    break;
+                case 9:
+                    if (wordIs("SAVEPOINT")) {
+                        return Kind.TRANSACTION;
+                    }
+                    break;
+            }
+            return Kind.OTHER;
+        }
+
+        /**
+         * @return true if the current word is the (upper case) keyword, ignoring case.
+         */
+        private boolean wordIs(String keyword) {
+            return pos - wordStart == keyword.length() && sql.regionMatches(true, wordStart, keyword, 0, keyword.length());
+        }
+
+        /**
+         * Moves to the next keyword or identifier of the first statement.
+         *
+         * @return false at the end of the first statement.
+         */
+        private boolean nextWord() {
+            int token;
+            while ((token = nextToken()) != END) {
+                if (token == WORD) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Moves to the next token of the first statement.  Parameters are counted, and the
+         * parenthesis depth is updated.
+         *
+         * @return the type of the token, END at the end of the first statement.
+         */
+        private int nextToken() {
+            int token = scanToken();
+            if (token != END) {
+                tokenEnd = pos;
+            }
+            return token;
+        }
+
+        private int scanToken() {
+            while (pos < length) {
+                tokenStart = pos;
+                char c = sql.charAt(pos);
+                if (Character.isLetter(c) || c == '_') {
+                    wordStart = pos;
+                    while (pos < length && isWordPart(sql.charAt(pos))) {
+                        pos++;
+                    }
+                    return WORD;
+                } else if (c == '\'' || c == '"' || c == '`') {
+                    skipQuoted(c);
+                    return OTHER;
+                } else if (c == '[') {
+                    skipQuoted(']');
+                    return OTHER;
+                } else if (c == '-' && pos + 1 < length && sql.charAt(pos + 1) == '-') {
+                    int end = sql.indexOf('\n', pos);
+                    pos = end < 0 ? length : end + 1;
+                } else if (c == '/' && pos + 1 < length && sql.charAt(pos + 1) == '*') {
+                    int end = sql.indexOf("*/", pos + 2);
+                    pos = end < 0 ? length : end + 2;
+                } else if (Character.isWhitespace(c)) {
+                    pos++;
+                } else if (c == ';' && depth == 0) {
+                    pos = length;
+                } else if (c == '?') {
+                    skipParameter();
+                    return PARAMETER;
+                } else if ((c == ':' || c == '@' || c == '$') && pos + 1 < length
+                        && (Character.isLetter(sql.charAt(pos + 1)) || sql.charAt(pos + 1) == '_')) {
+                    // a named parameter
+                    parameterCount++;
+                    namedOrNumberedParameters = true;
+                    pos++;
+                    while (pos < length && isWordPart(sql.charAt(pos))) {
+                        pos++;
+                    }
+                    return PARAMETER;
+                } else if (c == '(') {
+                    depth++;
+                    pos++;
+                    return OPEN;
+                } else if (c == ')') {
+                    depth--;
+                    pos++;
+                    return CLOSE;
+                } else {
+                    if (isWordPart(c)) {
+                        // skip numbers as a whole
+                        while (pos + 1 < length && isWordPart(sql.charAt(pos + 1))) {
+                            pos++;
+                        }
+                    }
+                    pos++;
+                    return OTHER;
+                }
+            }
+            return END;
+        }
+
+        /**
+         * Skips a "?" or "?NNN" parameter.  Like in SQLite, "?" is numbered one more than the
+         * largest parameter number so far, and "?NNN" is numbered NNN.
+         */
+        private void skipParameter() {
+            pos++;
+            int number = 0;
+            while (pos < length && Character.isDigit(sql.charAt(pos))) {
+                number = number * 10 + (sql.charAt(pos++) - '0');
+            }
+            if (number == 0) {
+                parameterCount++;
+            } else {
+                parameterCount = Math.max(parameterCount, number);
+                namedOrNumberedParameters = true;
+            }
+        }
+
+        /**
+         * Skips a literal or quoted identifier, where a doubled quote is an escaped quote.
+         */
+        private void skipQuoted(char closingQuote) {
+            pos++;
+            while (pos < length) {
+                if (sql.charAt(pos++) == closingQuote) {
+                    if (pos < length && sql.charAt(pos) == closingQuote && closingQuote != ']') {
+                        pos++;
+                    } else {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private static boolean isWordPart(char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+        }
+    }
+}
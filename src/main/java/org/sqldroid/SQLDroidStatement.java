@@ -1,21 +1,38 @@
 package org.sqldroid;
 
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.os.CancellationSignal;
+import android.database.sqlite.SQLiteStatement;
+import android.os.OperationCanceledException;
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.SQLFeatureNotSupportedException;
 import java.sql.SQLWarning;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 public class SQLDroidStatement implements Statement {
 
     private SQLiteDatabase db;
     private SQLDroidConnection sqldroidConnection;
     private SQLDroidResultSet rs = null;
-    protected StringBuffer sqlBatch = new StringBuffer();
-    private Integer maxRows = null;
+
+    /**
+     * The connection the statement was created through, if that is not its SQLDroidConnection
+     * itself, such as the connection a {@link DroidDataSource} hands out.
+     */
+    private Connection owner;
+    protected List<String> sqlBatch = new ArrayList<String>();
+    private int maxRows = 0;
+    private int fetchSize = 0;
 
     /**
      * The update count.  We don't know this, but need to respond in such a way that:
@@ -35,25 +52,37 @@ public class SQLDroidStatement implements Statement {
     public int updateCount = -1;
     private boolean poolable = false;
 
+    /**
+     * The row ids generated by the last execution that asked for generated keys, or null.
+     */
+    private ResultSet generatedKeys = null;
+
+    private final SQLDroidCancellation cancellation;
+
+    private long cursorWindowSize;
+    private SQLDroidCursorFactory cursorFactory;
+
     public SQLDroidStatement(SQLDroidConnection sqldroid) {
         this.sqldroidConnection = sqldroid;
         this.db = sqldroid.getDb();
+        this.cancellation = new SQLDroidCancellation(sqldroid);
+        this.cursorWindowSize = sqldroid.getCursorWindowSize();
     }
 
     @Override
     public void addBatch(String sql) throws SQLException {
         //sql must be a static sql
-        this.sqlBatch.append(sql);
+        this.sqlBatch.add(sql);
     }
 
     @Override
     public void cancel() throws SQLException {
-        throw new SQLFeatureNotSupportedException("cancel not supported");
+        cancellation.cancel();
     }
 
     @Override
     public void clearBatch() throws SQLException {
-        sqlBatch = new StringBuffer();
+        sqlBatch.clear();
     }
 
     @Override
@@ -63,6 +92,7 @@ public class SQLDroidStatement implements Statement {
     @Override
     public void close() throws SQLException {
         closeResultSet();
+        cancellation.close();
         sqldroidConnection = null;
         db = null;
     }
@@ -83,27 +113,38 @@ public class SQLDroidStatement implements Statement {
     /**
      * Execute the SQL statement.
      *
-     * @return false if there are no result (if the request was not a select or similar).  True if a
-     * result set is available.  This meets the requirement of java.sql.Statement.
+     * @return false if there are no result (if the request was not a select or similar, or, unless
+     * the connection executes queries lazily and the query is a SELECT, a query with an empty result).
+     * True if a result set is available.  This meets the requirement of java.sql.Statement.
+     * @see SQLDroidDriver#LAZY_QUERY_EXECUTION
      */
     @Override
     public boolean execute(String sql) throws SQLException {
         updateCount = -1;  // default outcome.  If the sql is a query or any other sql fails.
         closeResultSet();
-        boolean isSelect = sql.toUpperCase().matches("(?m)(?s)\\s*(SELECT|PRAGMA|EXPLAIN QUERY PLAN).*");
+        SQLDroidSqlClassification classification = SQLDroidSqlClassification.classify(sql);
+        sqldroidConnection.checkWritable(classification, sql);
+        sqldroidConnection.beginPendingTransaction();
+        boolean isSelect = classification.isQuery();
         if (rs != null && !rs.isClosed()) {
             rs.close();
         }
         if (isSelect) {
-            String limitedSql = sql + (maxRows != null ? " LIMIT " + maxRows : "");
-            Cursor c = db.rawQuery(limitedSql, new String[0]);
-            rs = new SQLDroidResultSet(c);
-            if (c.getCount() == 0)
-                return false;
+            CancellationSignal signal = cancellation.start();
+            try {
+                rs = query(sql, signal);
+                // counting the rows runs the whole query.  A lazy execution leaves that to the reader,
+                // but only for a SELECT: any other query, such as a PRAGMA, is run now for its effect.
+                boolean lazy = sqldroidConnection.isLazyQueryExecution() && classification.isSelect();
+                if (!lazy && rs.isEmpty())
+                    return false;
+            } catch (OperationCanceledException e) {
+                closeResultSet();
+                throw cancellation.canceled(e, signal);
+            }
         } else {
-            db.execSQL(sql);
             rs = null;
-            updateCount = sqldroidConnection.changedRowsCount();
+            updateCount = executeCompiled(sql);
         }
 
         boolean resultSetAvailable = (rs != null);
@@ -113,65 +154,369 @@ public class SQLDroidStatement implements Statement {
 
     @Override
     public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
-        // TODO: Could be implemented like SQLDroidPreparedStatement
-        throw new SQLFeatureNotSupportedException("execute not supported - use executeUpdate or executeQuery");
+        if (autoGeneratedKeys != RETURN_GENERATED_KEYS || SQLDroidSqlClassification.classify(sql).isQuery()) {
+            return execute(sql);
+        }
+        updateCount = -1;
+        closeResultSet();
+        updateCount = executeCompiled(sql, RETURN_GENERATED_KEYS);
+        return false;
     }
 
     @Override
     public boolean execute(String sql, int[] columnIndexes) throws SQLException {
-        throw new SQLFeatureNotSupportedException("execute not supported - use executeUpdate or executeQuery");
+        // the row id is the only key SQLite can report, whatever columns are asked for
+        return execute(sql, RETURN_GENERATED_KEYS);
     }
 
     @Override
     public boolean execute(String sql, String[] columnNames) throws SQLException {
-        throw new SQLFeatureNotSupportedException("execute not supported - use executeUpdate or executeQuery");
+        return execute(sql, RETURN_GENERATED_KEYS);
     }
 
+    /**
+     * Executes the batched statements one by one, each through a compiled statement, and returns the
+     * update count of each of them.  In auto-commit mode the whole batch runs in one transaction.
+     * <p>
+     * If an entry fails the connection's batch policy decides what happens, see
+     * {@link SQLDroidDriver#BATCH_CONTINUE_ON_ERROR}.  By default the batch stops at the failed entry and,
+     * if the batch started the transaction, rolls it back, so that either all or none of the entries
+     * are applied.  The <code>BatchUpdateException</code> then reports every entry as
+     * <code>EXECUTE_FAILED</code>.  Inside the caller's transaction it reports the update counts of the
+     * entries executed before the failure and leaves the rollback to the caller.  When continuing on
+     * errors, every entry is executed, the ones that succeeded are committed and the exception reports
+     * all update counts with the failed entries marked as <code>EXECUTE_FAILED</code>.
+     */
     @Override
     public int[] executeBatch() throws SQLException {
         updateCount = -1;
-        int[] results = new int[1];
-        results[0] = EXECUTE_FAILED;
-        db.execSQL(sqlBatch.toString());
-        results[0] = sqldroidConnection.changedRowsCount();
-        updateCount = results[0];
+        closeResultSet();
+        for (String sql : sqlBatch) {
+            sqldroidConnection.checkWritable(SQLDroidSqlClassification.classify(sql), sql);
+        }
+        sqldroidConnection.beginPendingTransaction();
+        boolean continueOnError = sqldroidConnection.isContinueBatchOnError();
+        int[] results = new int[sqlBatch.size()];
+        SQLException failure = null;
+        int failedEntry = -1;
+        boolean implicitTransaction = sqldroidConnection.getAutoCommit() && !db.inTransaction();
+        if (implicitTransaction) {
+            db.beginTransaction();
+        }
+        try {
+            for (int entry = 0; entry < results.length; entry++) {
+                try {
+                    results[entry] = executeCompiled(sqlBatch.get(entry));
+                } catch (SQLException e) {
+                    results[entry] = EXECUTE_FAILED;
+                    if (failure == null) {
+                        failure = e;
+                        failedEntry = entry;
+                    }
+                    if (!continueOnError) {
+                        break;
+                    }
+                }
+            }
+            if (implicitTransaction && (failure == null || continueOnError)) {
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            if (implicitTransaction) {
+                db.endTransaction();
+            }
+            clearBatch();
+        }
+        if (failure != null) {
+            throw batchUpdateException(failure, failedEntry, results, implicitTransaction, continueOnError);
+        }
         return results;
     }
 
+    /**
+     * Creates the exception thrown by <code>executeBatch</code> when a batch entry failed.
+     *
+     * @param failure             the exception of the first failed entry
+     * @param failedEntry         the index of the first failed entry
+     * @param results             the update counts, with <code>EXECUTE_FAILED</code> for failed entries
+     * @param implicitTransaction true if the batch ran in its own transaction
+     * @param continueOnError     true if the batch continued after the failure
+     */
+    static BatchUpdateException batchUpdateException(SQLException failure, int failedEntry, int[] results,
+                                                     boolean implicitTransaction, boolean continueOnError) {
+        int[] updateCounts;
+        if (continueOnError) {
+            updateCounts = results;
+        } else if (implicitTransaction) {
+            // the batch was rolled back, nothing of it was applied
+            updateCounts = new int[results.length];
+            Arrays.fill(updateCounts, EXECUTE_FAILED);
+        } else {
+            updateCounts = Arrays.copyOf(results, failedEntry);
+        }
+        return new BatchUpdateException("Batch entry " + failedEntry + " failed: " + failure.getMessage(),
+                failure.getSQLState(), failure.getErrorCode(), updateCounts, failure);
+    }
+
     @Override
     public ResultSet executeQuery(String sql) throws SQLException {
+        sqldroidConnection.checkWritable(SQLDroidSqlClassification.classify(sql), sql);
+        sqldroidConnection.beginPendingTransaction();
         closeResultSet();
-        Cursor c = db.rawQuery(sql, null);
-        rs = new SQLDroidResultSet(c);
+        CancellationSignal signal = cancellation.start();
+        try {
+            rs = query(sql, signal);
+        } catch (OperationCanceledException e) {
+            throw cancellation.canceled(e, signal);
+        }
         return rs;
     }
 
+    /**
+     * Runs a query, in pages of the fetch size if one is set, keyset paging is enabled and the query
+     * is a simple select that can be paged.  Otherwise a SELECT is limited to the maximum number of
+     * rows in SQLite, so that it does not step over rows nobody reads.
+     *
+     * @see SQLDroidKeysetPager
+     */
+    private SQLDroidResultSet query(String sql, CancellationSignal signal) throws SQLException {
+        SQLDroidSqlClassification classification = SQLDroidSqlClassification.classify(sql);
+        SQLDroidResultSet result = null;
+        if (fetchSize > 0 && sqldroidConnection.isKeysetPaging() && classification.isSimpleSelect()) {
+            SQLDroidKeysetPager pager = new SQLDroidKeysetPager(db, classification, null, fetchSize, signal, cursorFactory());
+            Cursor firstPage = pager.firstPage();
+            if (firstPage != null) {
+                result = new SQLDroidResultSet(firstPage, pager, fetchSize, cancellation, signal);
+            }
+        }
+        if (result == null) {
+            Cursor c = limitedQuery(db, cursorFactory(), classification, sql, maxRows, signal);
+            result = new SQLDroidResultSet(c, cancellation, signal);
+        }
+        result.setMaxRows(maxRows);
+        return result;
+    }
+
+    /**
+     * Executes a compiled INSERT and returns the row ids of the rows it inserted.
+     * <p>
+     * An INSERT ... SELECT or an INSERT of several VALUES rows can insert many rows, of which SQLite
+     * only tells the number, changes(), and the row id of the last one, last_insert_rowid().  The row
+     * ids are taken to be the range that ends at the last one.  That holds for the row ids SQLite
+     * assigns itself, which count up from the largest one in the table, but not for rows that are
+     * inserted with explicit row ids (INTEGER PRIMARY KEY values) out of order.
+     */
+    static long[] executeInsert(SQLiteDatabase db, SQLiteStatement statement, String sql,
+            SQLDroidSqlClassification classification) throws SQLException {
+        if (classification.isSingleRowInsert()) {
+            long rowId = db.executeInsert(statement, sql);
+            return rowId != -1 ? new long[]{rowId} : new long[0];
+        }
+        // changes() and last_insert_rowid() belong to the connection that executed the insert, which
+        // android only keeps for this thread within a transaction
+        boolean implicitTransaction = !db.inTransaction();
+        if (implicitTransaction) {
+            db.beginTransactionNonExclusive();
+        }
+        try {
+            int count = db.executeUpdateDelete(statement, sql);
+            long lastRowId = count > 0 ? db.lastInsertRowId() : -1;
+            if (implicitTransaction) {
+                db.setTransactionSuccessful();
+            }
+            long[] rowIds = new long[count];
+            for (int i = 0; i < count; i++) {
+                rowIds[i] = lastRowId - count + 1 + i;
+            }
+            return rowIds;
+        } finally {
+            if (implicitTransaction) {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Runs a query, limited to the maximum number of rows in SQLite if it is a SELECT whose result
+     * columns have distinct names.  SQLite renames the duplicate columns of a subquery, "id" and
+     * "id:1" for example, so a query with duplicate column names is run as written and only its
+     * result set stops at the maximum.
+     * <p>
+     * The first limited query of a sql compiles it once more to learn its column names, and keeps the
+     * answer with the classification of the sql, so later queries compile it only once.
+     *
+     * @param maxRows the maximum number of rows, zero for no limit
+     * @see SQLDroidSqlClassification#withMaxRows(String, int)
+     */
+    static Cursor limitedQuery(SQLiteDatabase db, CursorFactory cursorFactory, SQLDroidSqlClassification classification,
+                               String sql, int maxRows, CancellationSignal signal) throws SQLException {
+        String limitedSql = maxRows > 0 ? classification.withMaxRows(sql, maxRows) : null;
+        if (limitedSql != null && hasDistinctColumnNames(db, classification, sql)) {
+            return db.rawQueryWithFactory(cursorFactory, limitedSql, signal);
+        }
+        return db.rawQueryWithFactory(cursorFactory, sql, signal);
+    }
+
+    private static boolean hasDistinctColumnNames(SQLiteDatabase db, SQLDroidSqlClassification classification, String sql) {
+        Boolean distinct = classification.hasDistinctColumnNames();
+        if (distinct == null) {
+            // android compiles the query when it creates the cursor, but only runs it when the cursor
+            // is read.  This goes around the execution listeners, since nothing is executed.
+            Cursor probe;
+            try {
+                probe = db.getSqliteDatabase().rawQuery(sql, null);
+            } catch (android.database.SQLException e) {
+                // the query itself reports the failure
+                return false;
+            }
+            try {
+                distinct = !hasDuplicateNames(probe.getColumnNames());
+            } finally {
+                probe.close();
+            }
+            classification.setDistinctColumnNames(distinct);
+        }
+        return distinct;
+    }
+
+    private static boolean hasDuplicateNames(String[] names) {
+        Set<String> distinct = new HashSet<String>();
+        for (String name : names) {
+            if (!distinct.add(name.toLowerCase(Locale.ROOT))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the size in bytes of the cursor windows of the queries of this statement, zero for
+     * the platform default.
+     */
+    public long getCursorWindowSize() {
+        return cursorWindowSize;
+    }
+
+    /**
+     * Sets the size in bytes of the cursor windows of the queries of this statement, zero for the
+     * platform default.  Android only allows this from API 28, before that the size is ignored.
+     *
+     * @see SQLDroidDriver#CURSOR_WINDOW_SIZE
+     */
+    public void setCursorWindowSize(long bytes) throws SQLException {
+        if (bytes < 0) {
+            throw new SQLException("Cursor window size must be >= 0, not " + bytes);
+        }
+        cursorWindowSize = bytes;
+    }
+
+    /**
+     * @return the factory for the cursors of the queries of this statement, or null for android's default.
+     */
+    private SQLDroidCursorFactory cursorFactory() {
+        cursorFactory = SQLDroidCursorFactory.forStatement(cursorFactory, sqldroidConnection.getCursorFactory(), cursorWindowSize);
+        return cursorFactory;
+    }
+
     @Override
     public int executeUpdate(String sql) throws SQLException {
         closeResultSet();
-        db.execSQL(sql);
-        updateCount = sqldroidConnection.changedRowsCount();
+        updateCount = executeCompiled(sql);
         return updateCount;
     }
 
+    /**
+     * Execute a statement that is not a query through a compiled statement, so that the update count
+     * comes from the execution itself rather than from a "select changes()" query.  The compiled
+     * statement is taken from the statement cache of the connection and, if this statement is
+     * poolable, returned to it.
+     *
+     * @return the update count of the statement
+     */
+    private int executeCompiled(String sql) throws SQLException {
+        return executeCompiled(sql, NO_GENERATED_KEYS);
+    }
+
+    /**
+     * Execute a statement that is not a query through a compiled statement.  If generated keys are
+     * requested, the row id returned by the insert is kept for <code>getGeneratedKeys()</code>.
+     * A PRAGMA or EXPLAIN is run as a query for its effect, and its rows are dropped.
+     *
+     * @return the update count of the statement
+     * @throws SQLException if the statement is a SELECT or has a RETURNING clause.
+     */
+    private int executeCompiled(String sql, int autoGeneratedKeys) throws SQLException {
+        generatedKeys = null;
+        SQLDroidSqlClassification classification = SQLDroidSqlClassification.classify(sql);
+        if (classification.isSelect() || classification.hasReturning()) {
+            throw new SQLException("Statement returns a result set: " + sql);
+        }
+        sqldroidConnection.checkWritable(classification, sql);
+        sqldroidConnection.beginPendingTransaction();
+        if (autoGeneratedKeys == RETURN_GENERATED_KEYS && !classification.isInsert()) {
+            generatedKeys = SQLDroidResultSet.generatedKeys(new long[0], 0);
+        }
+        if (classification.isAttach()) {
+            // only execSQL makes android see the attached database on every connection of its pool
+            db.execSQL(sql);
+            return 0;
+        }
+        if (classification.isQuery()) {
+            // a compiled statement refuses to step to a row, and PRAGMA journal_mode = WAL returns one
+            Cursor cursor = db.rawQuery(sql, new String[0]);
+            try {
+                cursor.getCount();
+            } finally {
+                cursor.close();
+            }
+            return 0;
+        }
+        SQLiteStatement statement = sqldroidConnection.acquireStatement(sql);
+        try {
+            if (classification.isInsert() && autoGeneratedKeys == RETURN_GENERATED_KEYS) {
+                long[] rowIds = executeInsert(db, statement, sql, classification);
+                generatedKeys = SQLDroidResultSet.generatedKeys(rowIds, rowIds.length);
+                return rowIds.length;
+            }
+            if (classification.isInsert() || classification.isUpdateOrDelete()) {
+                return db.executeUpdateDelete(statement, sql);
+            }
+            db.execute(statement, sql);
+            return 0;
+        } finally {
+            if (poolable) {
+                sqldroidConnection.releaseStatement(sql, statement);
+            } else {
+                statement.close();
+            }
+        }
+    }
+
     @Override
     public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
-        return executeUpdate(sql);
+        closeResultSet();
+        updateCount = executeCompiled(sql, autoGeneratedKeys);
+        return updateCount;
     }
 
     @Override
     public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
-        throw new SQLFeatureNotSupportedException("executeUpdate(String,int[]) not supported - use executeUpdate(String)");
+        // the row id is the only key SQLite can report, whatever columns are asked for
+        return executeUpdate(sql, RETURN_GENERATED_KEYS);
     }
 
     @Override
     public int executeUpdate(String sql, String[] columnNames) throws SQLException {
-        throw new SQLFeatureNotSupportedException("executeUpdate(String,String[]) not supported - use executeUpdate(String)");
+        return executeUpdate(sql, RETURN_GENERATED_KEYS);
     }
 
     @Override
     public Connection getConnection() throws SQLException {
-        return sqldroidConnection;
+        return owner != null ? owner : sqldroidConnection;
+    }
+
+    void setOwner(Connection owner) {
+        this.owner = owner;
     }
 
     @Override
@@ -182,12 +527,21 @@ public class SQLDroidStatement implements Statement {
 
     @Override
     public int getFetchSize() throws SQLException {
-        // TODO Avoid NPE for rs
-        return rs.getFetchSize();
+        return fetchSize;
     }
 
+    /**
+     * Returns the row id generated by the last statement executed with <code>RETURN_GENERATED_KEYS</code>.
+     * For a statement executed without asking for keys this falls back to querying
+     * "select last_insert_rowid()", which costs an extra query.
+     */
     @Override
     public ResultSet getGeneratedKeys() throws SQLException {
+        if (generatedKeys != null) {
+            ResultSet keys = generatedKeys;
+            generatedKeys = null;
+            return keys;
+        }
         return sqldroidConnection.getGeneratedRowIdResultSet();
     }
 
@@ -198,9 +552,7 @@ public class SQLDroidStatement implements Statement {
 
     @Override
     public int getMaxRows() throws SQLException {
-        // TODO: return rs.getMaxRows()
-        // TODO: Avoid NPE for rs
-        return 0;
+        return maxRows;
     }
 
     @Override
@@ -218,7 +570,7 @@ public class SQLDroidStatement implements Statement {
 
     @Override
     public int getQueryTimeout() throws SQLException {
-        throw new UnsupportedOperationException("getQueryTimeout not implemented yet");
+        return cancellation.getQueryTimeout();
     }
 
     @Override
@@ -277,10 +629,21 @@ public class SQLDroidStatement implements Statement {
         rs.setFetchDirection(direction);
     }
 
+    /**
+     * Sets the number of rows to read at a time.  If the connection enables keyset paging, a query of
+     * this statement that is a simple single-table select is then read in pages of that many rows,
+     * ordered by rowid, instead of through one cursor over the whole result.  Its result set is
+     * forward only.  Otherwise the fetch size is only a hint, which is ignored.
+     *
+     * @see SQLDroidDriver#KEYSET_PAGING
+     * @see SQLDroidKeysetPager
+     */
     @Override
     public void setFetchSize(int rows) throws SQLException {
-        // TODO: Avoid NPE
-        rs.setFetchSize(rows);
+        if (rows < 0) {
+            throw new SQLException("Fetch size must be >= 0, not " + rows);
+        }
+        fetchSize = rows;
     }
 
     @Override
@@ -294,16 +657,17 @@ public class SQLDroidStatement implements Statement {
             throw new SQLException("Statement is closed.");
         } else if (max < 0) {
             throw new SQLException("Max rows must be zero or positive. Got " + max);
-        } else if (max == 0) {
-            maxRows = null;
-        } else {
-            maxRows = max;
         }
+        maxRows = max;
     }
 
+    /**
+     * Sets the time a query may take from its execution until its result set is closed.  Only
+     * queries are cancelled when their timeout expires, updates run to completion.
+     */
     @Override
     public void setQueryTimeout(int seconds) throws SQLException {
-        throw new UnsupportedOperationException("setQueryTimeout not implemented yet");
+        cancellation.setQueryTimeout(seconds);
     }
 
     @Override
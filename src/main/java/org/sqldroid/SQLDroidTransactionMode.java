@@ -0,0 +1,34 @@
+package org.sqldroid;
+
+/**
+ * How a connection begins its transactions, which decides when the transaction takes the write
+ * lock of the database.
+ *
+ * @see SQLDroidDriver#TRANSACTION_MODE
+ * @see SQLDroidConnection#beginTransaction(SQLDroidTransactionMode)
+ */
+public enum SQLDroidTransactionMode {
+
+    /**
+     * Takes no lock until the transaction reads or writes.  Android offers no deferred transaction
+     * before API 35, so this begins the transaction like {@link #IMMEDIATE}.
+     */
+    DEFERRED,
+
+    /**
+     * Takes the write lock at once, but lets other database connections read until the commit.  This
+     * is android's <code>beginTransactionNonExclusive</code>.
+     * <p>
+     * The connections of this driver to one database share android's single database connection
+     * unless write-ahead logging is enabled, and a transaction holds that connection until it ends.
+     * So without write-ahead logging the other connections in the same process wait for the commit
+     * in this mode as well, only other processes can still read.
+     */
+    IMMEDIATE,
+
+    /**
+     * Takes the write lock at once, and outside of write-ahead logging also keeps other connections
+     * from reading.  This is android's <code>beginTransaction</code>, and the default.
+     */
+    EXCLUSIVE
+}
@@ -0,0 +1,455 @@
+package org.sqldroid;
+
+import android.database.sqlite.SQLiteStatement;
+
+import java.sql.BatchUpdateException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A writer thread per database that executes updates submitted by any connection, grouping them
+ * into one transaction per commit interval.
+ * <p>
+ * This serves the pattern described in {@link SQLiteDatabase}: a thread that collects data every
+ * 100ms and inserts it must not wait for the database.  Instead of committing each insert, which
+ * costs a sync of the journal per insert, the inserts are queued and the writer commits all writes
+ * that arrive within <code>commitInterval</code> milliseconds (or up to
+ * <code>maxWritesPerTransaction</code> writes) in one transaction.  The producer gets a
+ * <code>Future</code> that is done once its write is committed, or has failed.
+ * <p>
+ * The writer collects the writes of a transaction before it begins the transaction, so that it only
+ * holds the lock of the database while it executes them, not while it waits for more writes.
+ * <p>
+ * The queue is bounded.  A write that does not fit is rejected at once with a SQLException, or, if
+ * an offer timeout is given, after waiting that long for space.
+ * <p>
+ * Each write runs in a savepoint of its own, so a write that fails is rolled back as a whole, also
+ * the rows of it that were executed before the failing one, and the other writes of the transaction
+ * are committed without it.  Some failures roll back the whole transaction instead: a constraint
+ * that is ON CONFLICT ROLLBACK, a full disk or an I/O error.  The savepoint is then gone, and the
+ * writer executes the other writes of the transaction again in a new one.
+ */
+class SQLDroidWriteBehindQueue implements Runnable {
+
+    /**
+     * The number of compiled statements the writer keeps.
+     */
+    private static final int STATEMENT_CACHE_SIZE = 16;
+
+    /**
+     * The savepoint each write runs in.
+     */
+    private static final String WRITE_SAVEPOINT = "\"SQLDROID_WRITE\"";
+
+    private final SQLiteDatabase db;
+    private final BlockingQueue<Write> queue;
+    private final long commitInterval;
+    private final int maxWritesPerTransaction;
+    private final long offerTimeout;
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    /**
+     * Compiled statements of the writer thread, keyed by their sql, in least recently used order.
+     */
+    private final Map<String, SQLiteStatement> statements =
+            new LinkedHashMap<String, SQLiteStatement>(STATEMENT_CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                    if (size() > STATEMENT_CACHE_SIZE) {
+                        eldest.getValue().close();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    /**
+     * @param queueSize               the maximum number of writes waiting to be executed
+     * @param commitInterval          the time in milliseconds the writer collects writes into one transaction
+     * @param maxWritesPerTransaction the maximum number of writes in one transaction
+     * @param offerTimeout            the time in milliseconds a write waits for space in a full queue,
+     *                                zero to reject it at once
+     */
+    SQLDroidWriteBehindQueue(SQLiteDatabase db, int queueSize, long commitInterval, int maxWritesPerTransaction, long offerTimeout) {
+        this.db = db;
+        this.queue = new ArrayBlockingQueue<Write>(Math.max(1, queueSize));
+        this.commitInterval = Math.max(0, commitInterval);
+        this.maxWritesPerTransaction = Math.max(1, maxWritesPerTransaction);
+        this.offerTimeout = Math.max(0, offerTimeout);
+        writer = new Thread(this, "SQLDroid write-behind " + db.dbQname);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues the execution of a statement once per row of arguments.
+     *
+     * @return a future for the update count of each row, done when the rows are committed.  If a row
+     * fails, none of the rows are committed, and the future fails with a BatchUpdateException holding
+     * the counts of the rows before it, or for a single row with the SQLException.
+     * @throws SQLException if the sql is a query or ends or begins a transaction, or the queue is
+     * closed or full.
+     */
+    Future<int[]> submit(String sql, List<Object[]> rows) throws SQLException {
+        SQLDroidSqlClassification classification = SQLDroidSqlClassification.classify(sql);
+        if (classification.isQuery()) {
+            throw new SQLException("A query can not be written behind: " + sql);
+        }
+        if (classification.getKind() == SQLDroidSqlClassification.Kind.TRANSACTION) {
+            throw new SQLException("The writer manages its transactions itself: " + sql);
+        }
+        Write write = new Write(sql, copy(rows));
+        offer(write);
+        return write;
+    }
+
+    /**
+     * Copies the rows of a write, so that the caller can reuse its arrays once the write is queued.
+     * Blobs are copied, and arguments that are bound as strings are converted now.
+     */
+    private static List<Object[]> copy(List<Object[]> rows) {
+        List<Object[]> copies = new ArrayList<Object[]>(rows.size());
+        for (Object[] row : rows) {
+            Object[] copy = row != null ? row.clone() : new Object[0];
+            for (int i = 0; i < copy.length; i++) {
+                Object arg = copy[i];
+                if (arg instanceof byte[]) {
+                    copy[i] = ((byte[]) arg).clone();
+                } else if (arg != null && !(arg instanceof String || arg instanceof Long || arg instanceof Integer
+                        || arg instanceof Short || arg instanceof Byte || arg instanceof Double
+                        || arg instanceof Float || arg instanceof Boolean)) {
+                    copy[i] = arg.toString();
+                }
+            }
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    /**
+     * Waits until all writes submitted before are committed.  The flush waits for space in a full
+     * queue as well, within the same timeout.
+     *
+     * @return false if the timeout expired first.
+     */
+    boolean flush(long timeout, TimeUnit unit) throws SQLException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Write flush = new Write(null, null);
+        try {
+            if (!enqueue(flush, unit.toNanos(timeout))) {
+                return false;
+            }
+            flush.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while flushing the write-behind queue of " + db.dbQname);
+        } catch (ExecutionException e) {
+            // a flush does not fail
+            return true;
+        }
+    }
+
+    private void offer(Write write) throws SQLException {
+        boolean queued;
+        try {
+            queued = enqueue(write, TimeUnit.MILLISECONDS.toNanos(offerTimeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queued = false;
+        }
+        if (!queued) {
+            throw new SQLException("The write-behind queue of " + db.dbQname + " is full");
+        }
+    }
+
+    /**
+     * Queues a write or flush marker, waiting up to the timeout for space in a full queue.
+     *
+     * @return false if the queue stayed full.
+     * @throws SQLException if the queue is closed.
+     */
+    private boolean enqueue(Write write, long timeoutNanos) throws SQLException, InterruptedException {
+        if (closed) {
+            throw new SQLException("The write-behind queue of " + db.dbQname + " is closed");
+        }
+        if (!(timeoutNanos > 0 ? queue.offer(write, timeoutNanos, TimeUnit.NANOSECONDS) : queue.offer(write))) {
+            return false;
+        }
+        if (!writer.isAlive() && queue.remove(write)) {
+            // the writer stopped after the check above, nobody would execute the write
+            throw new SQLException("The write-behind queue of " + db.dbQname + " is closed");
+        }
+        return true;
+    }
+
+    /**
+     * Executes and commits all queued writes and stops the writer thread.  Writes submitted
+     * afterwards are rejected.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(new Write(null, null));
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Write> transaction = new ArrayList<Write>(Math.min(maxWritesPerTransaction, 64));
+        try {
+            while (!closed || !queue.isEmpty()) {
+                Write write = queue.take();
+                if (write.sql == null) {
+                    // nothing is pending, so the flush is done
+                    write.complete();
+                    continue;
+                }
+                // collect the writes of the commit interval first, the database is not locked meanwhile
+                long deadline = System.currentTimeMillis() + commitInterval;
+                transaction.add(write);
+                while (transaction.size() < maxWritesPerTransaction) {
+                    long wait = deadline - System.currentTimeMillis();
+                    write = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (write == null) {
+                        break;
+                    }
+                    transaction.add(write);
+                    if (write.sql == null) {
+                        // a flush commits what is pending right away
+                        break;
+                    }
+                }
+                commit(transaction);
+                transaction.clear();
+            }
+        } catch (InterruptedException e) {
+            Log.e("SQLDroidWriteBehindQueue: writer of " + db.dbQname + " interrupted", e);
+        } finally {
+            closed = true;
+            for (Write write : transaction) {
+                write.fail(new SQLException("The write-behind queue of " + db.dbQname + " is closed"));
+                write.complete();
+            }
+            for (SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+            statements.clear();
+            // fail what is left, so nobody waits forever
+            Write write;
+            while ((write = queue.poll()) != null) {
+                if (write.sql != null) {
+                    write.fail(new SQLException("The write-behind queue of " + db.dbQname + " is closed"));
+                }
+                write.complete();
+            }
+        }
+    }
+
+    /**
+     * Executes the collected writes in one transaction and completes them.  If a write rolls back
+     * the transaction, the transaction is executed again without it.
+     */
+    private void commit(List<Write> transaction) {
+        List<Write> writes = new ArrayList<Write>(transaction.size());
+        for (Write write : transaction) {
+            if (write.sql != null) {
+                writes.add(write);
+            }
+        }
+        SQLException commitFailure = null;
+        Write rolledBack;
+        do {
+            rolledBack = null;
+            try {
+                db.beginTransaction();
+                try {
+                    for (Write write : writes) {
+                        if (!execute(write)) {
+                            rolledBack = write;
+                            break;
+                        }
+                    }
+                    if (rolledBack == null) {
+                        db.setTransactionSuccessful();
+                    }
+                } finally {
+                    endTransaction(rolledBack != null);
+                }
+            } catch (SQLException e) {
+                commitFailure = e;
+            }
+            writes.remove(rolledBack);
+        } while (rolledBack != null && commitFailure == null);
+        for (Write done : transaction) {
+            if (commitFailure != null && writes.contains(done)) {
+                done.fail(commitFailure);
+            }
+            done.complete();
+        }
+    }
+
+    /**
+     * Ends the transaction of the writes.
+     *
+     * @param rolledBack true if SQLite rolled the transaction back already, so that android fails to.
+     */
+    private void endTransaction(boolean rolledBack) throws SQLException {
+        try {
+            db.endTransaction();
+        } catch (SQLException e) {
+            if (!rolledBack) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Executes a write inside the current transaction, in a savepoint, keeping its result until the
+     * commit.  If the write fails, the savepoint is rolled back.
+     *
+     * @return false if the write failed and SQLite rolled back the whole transaction.
+     */
+    private boolean execute(Write write) throws SQLException {
+        write.reset();
+        db.execSQL("SAVEPOINT " + WRITE_SAVEPOINT);
+        int[] counts = new int[write.rows.size()];
+        int row = 0;
+        try {
+            SQLiteStatement statement = statements.get(write.sql);
+            if (statement == null) {
+                statement = db.compileStatement(write.sql);
+                statements.put(write.sql, statement);
+            }
+            SQLDroidSqlClassification classification = SQLDroidSqlClassification.classify(write.sql);
+            for (; row < counts.length; row++) {
+                SQLiteDatabase.bindArguments(statement, write.rows.get(row));
+                if (classification.isInsert() || classification.isUpdateOrDelete()) {
+                    counts[row] = db.executeUpdateDelete(statement, write.sql);
+                } else {
+                    db.execute(statement, write.sql);
+                }
+            }
+            db.execSQL("RELEASE SAVEPOINT " + WRITE_SAVEPOINT);
+            write.result = counts;
+            return true;
+        } catch (SQLException e) {
+            boolean transactionKept = rollbackToSavepoint();
+            if (counts.length == 1) {
+                write.fail(e);
+            } else {
+                BatchUpdateException failure = new BatchUpdateException(e.getMessage(), e.getSQLState(),
+                        e.getErrorCode(), Arrays.copyOf(counts, row));
+                failure.initCause(e);
+                write.fail(failure);
+            }
+            return transactionKept;
+        }
+    }
+
+    /**
+     * Undoes the changes of a failed write.
+     *
+     * @return false if the savepoint is gone, because the failure rolled back the whole transaction.
+     */
+    private boolean rollbackToSavepoint() {
+        try {
+            // android takes a statement that starts with ROLLBACK for the end of its transaction
+            db.execSQL("/* savepoint */ ROLLBACK TO SAVEPOINT " + WRITE_SAVEPOINT);
+            db.execSQL("RELEASE SAVEPOINT " + WRITE_SAVEPOINT);
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A queued write, or with no sql a flush marker, and the future of its outcome.
+     */
+    private static final class Write implements Future<int[]> {
+        final String sql;
+        final List<Object[]> rows;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private int[] result;
+        private SQLException failure;
+
+        Write(String sql, List<Object[]> rows) {
+            this.sql = sql;
+            this.rows = rows;
+        }
+
+        void fail(SQLException e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+
+        /**
+         * Forgets the outcome of an execution that was rolled back with its transaction.
+         */
+        void reset() {
+            result = null;
+            failure = null;
+        }
+
+        void complete() {
+            done.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public int[] get() throws InterruptedException, ExecutionException {
+            done.await();
+            return outcome();
+        }
+
+        @Override
+        public int[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return outcome();
+        }
+
+        private int[] outcome() throws ExecutionException {
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return result;
+        }
+    }
+}
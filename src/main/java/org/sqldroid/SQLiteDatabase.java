@@ -1,19 +1,31 @@
 package org.sqldroid;
 
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.database.sqlite.SQLiteDatabaseLockedException;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteProgram;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
 
-import java.lang.reflect.Method;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A  proxy class for the database that allows actions to be retried without forcing every method
  * through the reflection process.  This was originally implemented as an interface and a Proxy.
  * While quite slick, it always used reflection which can be horribly slow.
  * <p>
- * SQLiteDatabaseLockedException did not exist before API 11 so this resolves that problem by
- * using reflection to determine if the Exception is a SQLiteDatabaseLockedException which will,
- * presumably, only work on API 11 or later.
+ * An operation that finds the database locked (a SQLiteDatabaseLockedException) is tried again as
+ * the {@link SQLDroidRetryPolicy} of the database decides: by default with delays that grow up to
+ * the retry interval, so that waiting threads sleep instead of spinning on the lock while the thread
+ * that holds it works.  The waits are counted in the {@link SQLDroidLockWaitStatistics} of the
+ * database.
+ * <p>
+ * The operations are also passed to the {@link SQLDroidExecutionListener}s of the database and of the
+ * driver, if there are any.
  * <p>
  * This is still pretty ugly.  Part of the problem is an architectural decision to handle errors
  * within the JDBC driver.
@@ -36,7 +48,11 @@ import java.sql.SQLException;
 public class SQLiteDatabase {
 
     protected static enum Transaction {
-        setTransactionSuccessful, endTransaction, close, beginTransaction
+        setTransactionSuccessful, endTransaction, close, beginTransaction, beginTransactionNonExclusive
+    }
+
+    protected static enum StatementExecution {
+        execute, executeInsert, executeUpdateDelete
     }
 
     /**
@@ -51,20 +67,33 @@ public class SQLiteDatabase {
     protected long timeout;
 
     /**
-     * The delay in milliseconds between retries when timeout is given.
+     * The longest delay in milliseconds between retries when timeout is given.
      * The value is ignored if timeout is not given.
      */
     protected long retryInterval;
 
+    /**
+     * Decides when an operation on the locked database is tried again.
+     */
+    private final SQLDroidRetryPolicy retryPolicy;
+
+    private final SQLDroidLockWaitStatistics lockWaitStatistics = new SQLDroidLockWaitStatistics();
+
+    /**
+     * The listeners that are told about the operations on this database, in addition to those of the driver.
+     */
+    private final List<SQLDroidExecutionListener> executionListeners = new CopyOnWriteArrayList<SQLDroidExecutionListener>();
+
     /**
      * The name of the database.
      */
     protected String dbQname;
 
     /**
-     * The method to invoke to get the changed row count.
+     * The writer thread of the database for updates submitted to be written behind, created by the
+     * first connection that submits one.
      */
-    protected Method getChangedRowCount;
+    private SQLDroidWriteBehindQueue writeBehindQueue;
 
     /**
      * @param dbQname
@@ -76,47 +105,199 @@ public class SQLiteDatabase {
      */
     public SQLiteDatabase(String dbQname, long timeout, long retryInterval, int flags)
             throws SQLException {
-        super();
-        this.dbQname = dbQname;
+        this(dbQname, new SQLDroidBackoffRetryPolicy(timeout, 1, retryInterval), flags);
         this.timeout = timeout;
         this.retryInterval = retryInterval;
-        long timeNow = System.currentTimeMillis();
-        long delta = 0;
-        while (sqliteDatabase == null) {
-            try {
-                sqliteDatabase = android.database.sqlite.SQLiteDatabase.openDatabase(dbQname, null, flags);
-            } catch (SQLiteException e) {
-                if (isLockedException(e)) {
-                    try {
-                        Thread.sleep(retryInterval);
-                    } catch (InterruptedException e1) {
-                        // ignore
-                    }
-                    delta = System.currentTimeMillis() - timeNow;
-                    if (delta >= timeout) {
-                        throw SQLDroidConnection.chainException(e);
-                    }
-                } else {
-                    throw SQLDroidConnection.chainException(e);
+    }
+
+    /**
+     * @param retryPolicy decides when an operation on the locked database is tried again
+     * @throws SQLException thrown if the attempt to connect to the database throws an exception
+     *                      other than a locked exception or the retry policy gives up on a locked
+     *                      exception.
+     */
+    public SQLiteDatabase(String dbQname, SQLDroidRetryPolicy retryPolicy, int flags) throws SQLException {
+        super();
+        this.dbQname = dbQname;
+        this.retryPolicy = retryPolicy;
+        LockWait wait = null;
+        try {
+            while (sqliteDatabase == null) {
+                try {
+                    sqliteDatabase = android.database.sqlite.SQLiteDatabase.openDatabase(dbQname, null, flags);
+                } catch (SQLiteException e) {
+                    wait = awaitLock(e, wait);
                 }
             }
+        } finally {
+            lockWaitEnded(wait);
+        }
+        if (retryPolicy.getBusyTimeout() > 0) {
+            // PRAGMA busy_timeout returns a row, so it has to run as a query.  It applies to the
+            // connection of android's pool that writes, the readers of write-ahead logging rarely wait.
+            Cursor cursor = rawQuery("PRAGMA busy_timeout = " + retryPolicy.getBusyTimeout(), new String[0]);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
         }
     }
 
     /**
-     * Returns true if the exception is an instance of "SQLiteDatabaseLockedException".  Since this
-     * exception does not exist in APIs below 11 this code uses reflection to check the exception
-     * type.
+     * Returns true if the exception is a SQLiteDatabaseLockedException, which android throws for
+     * both SQLITE_BUSY and SQLITE_LOCKED.
      */
     protected boolean isLockedException(SQLiteException maybeLocked) {
+        return maybeLocked instanceof SQLiteDatabaseLockedException;
+    }
+
+    /**
+     * Handles the failure of an attempt: if the database was locked and the retry policy allows
+     * another attempt, this waits for the delay the policy asks for.
+     *
+     * @param wait the wait of the operation so far, or null after its first attempt
+     * @return the wait of the operation, for the next failure
+     * @throws SQLException the failure, if the database was not locked, or a SQLTimeoutException if the
+     *                      retry policy gives up.
+     */
+    private LockWait awaitLock(SQLiteException e, LockWait wait) throws SQLException {
+        if (!isLockedException(e)) {
+            throw SQLDroidConnection.chainException(e);
+        }
+        if (wait == null) {
+            wait = new LockWait();
+        }
+        wait.attempts++;
+        long delay = retryPolicy.nextDelay(wait.attempts, System.currentTimeMillis() - wait.start);
+        if (delay < 0) {
+            wait.timedOut = true;
+            SQLException timeout = new SQLTimeoutException("Timeout Expired");
+            timeout.initCause(e);
+            throw timeout;
+        }
+        lockWaitStatistics.retried();
         try {
-            if (Class.forName("android.database.sqlite.SQLiteDatabaseLockedException", false, getClass().getClassLoader()).isAssignableFrom(maybeLocked.getClass())) {
-                return true;
+            Thread.sleep(delay);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            SQLException failure = new SQLException("Interrupted while waiting for the lock of " + dbQname);
+            failure.initCause(e);
+            throw failure;
+        }
+        return wait;
+    }
+
+    /**
+     * Counts the wait of an operation that found the database locked, once the operation ended.
+     *
+     * @return the time in milliseconds the operation waited, zero if it did not find the database locked
+     */
+    private long lockWaitEnded(LockWait wait) {
+        if (wait == null) {
+            return 0;
+        }
+        long waited = System.currentTimeMillis() - wait.start;
+        lockWaitStatistics.waited(waited, wait.timedOut);
+        if (Log.isLoggable(android.util.Log.DEBUG)) {
+            Log.d("SQLiteDatabase: {} waited {}ms for the lock of {}", Log.THREAD, waited, dbQname + (wait.timedOut ? " and gave up" : ""));
+        }
+        return waited;
+    }
+
+    /**
+     * Adds a listener that is told about the operations on this database, until it is removed.
+     */
+    public void addExecutionListener(SQLDroidExecutionListener listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener");
+        }
+        executionListeners.add(listener);
+    }
+
+    public void removeExecutionListener(SQLDroidExecutionListener listener) {
+        executionListeners.remove(listener);
+    }
+
+    /**
+     * @return true if a listener is told about the operations on this database.  Without listeners
+     * an operation does not create its {@link SQLDroidExecution}, nor read the clock for it.
+     */
+    private boolean isObserved() {
+        return !executionListeners.isEmpty() || !SQLDroidDriver.executionListeners.isEmpty();
+    }
+
+    /**
+     * Tells the listeners that an operation is started.
+     *
+     * @return the execution to pass to {@link #afterExecution}, or null if there are no listeners
+     */
+    private SQLDroidExecution beforeExecution(String operation, String sql, int parameterCount) {
+        if (!isObserved()) {
+            return null;
+        }
+        SQLDroidExecution execution = new SQLDroidExecution(dbQname, operation, sql, parameterCount, SQLDroidDriver.getComponentTag());
+        notifyListeners(execution, false);
+        execution.started();
+        return execution;
+    }
+
+    /**
+     * Tells the listeners that an operation ended.
+     */
+    private void afterExecution(SQLDroidExecution execution, long lockWaitMillis) {
+        if (execution != null) {
+            execution.ended(lockWaitMillis);
+            notifyListeners(execution, true);
+        }
+    }
+
+    private static void failed(SQLDroidExecution execution, Exception failure) {
+        if (execution != null) {
+            execution.setFailure(failure);
+        }
+    }
+
+    private static long rowCount(SQLDroidExecution execution, long rowCount) {
+        if (execution != null) {
+            execution.setRowCount(rowCount);
+        }
+        return rowCount;
+    }
+
+    private void notifyListeners(SQLDroidExecution execution, boolean ended) {
+        notifyListeners(SQLDroidDriver.executionListeners, execution, ended);
+        notifyListeners(executionListeners, execution, ended);
+    }
+
+    private static void notifyListeners(List<SQLDroidExecutionListener> listeners, SQLDroidExecution execution, boolean ended) {
+        for (SQLDroidExecutionListener listener : listeners) {
+            try {
+                if (ended) {
+                    listener.afterExecution(execution);
+                } else {
+                    listener.beforeExecution(execution);
+                }
+            } catch (RuntimeException e) {
+                Log.e("SQLiteDatabase: execution listener " + listener + " failed for " + execution, e);
             }
-        } catch (ClassNotFoundException e) {
-            // no android.database.sqlite.SQLiteDatabaseLockedException
         }
-        return false;
+    }
+
+    /**
+     * @return the counts of the waits for locks of this database.
+     */
+    public SQLDroidLockWaitStatistics getLockWaitStatistics() {
+        return lockWaitStatistics;
+    }
+
+    /**
+     * The wait of one operation for the lock of the database.
+     */
+    private static final class LockWait {
+        final long start = System.currentTimeMillis();
+        int attempts = 0;
+        boolean timedOut = false;
     }
 
     /**
@@ -125,23 +306,74 @@ public class SQLiteDatabase {
      * @throws SQLException
      */
     public Cursor rawQuery(String sql, String[] makeArgListQueryString) throws SQLException {
-        Log.v("SQLiteDatabase rawQuery: " + Thread.currentThread().getId() + " \"" + Thread.currentThread().getName() + "\" " + sql);
-        long timeNow = System.currentTimeMillis();
-        long delta = 0;
-        do {
-            try {
-                Cursor cursor = sqliteDatabase.rawQuery(sql, makeArgListQueryString);
-                Log.v("SQLiteDatabase rawQuery OK: " + Thread.currentThread().getId() + " \"" + Thread.currentThread().getName() + "\" " + sql);
-                return cursor;
-            } catch (SQLiteException e) {
-                if (isLockedException(e)) {
-                    delta = System.currentTimeMillis() - timeNow;
-                } else {
-                    throw SQLDroidConnection.chainException(e);
+        return rawQuery(sql, makeArgListQueryString, null);
+    }
+
+    /**
+     * Proxy for the "rawQuery" command with a signal that cancels the query.  A cancelled query
+     * throws an OperationCanceledException, here or later when the cursor fills its next window.
+     *
+     * @throws SQLException
+     */
+    public Cursor rawQuery(String sql, String[] makeArgListQueryString, CancellationSignal cancellationSignal) throws SQLException {
+        Log.v("SQLiteDatabase rawQuery: {} {}", Log.THREAD, sql);
+        SQLDroidExecution observed = beforeExecution("rawQuery", sql, makeArgListQueryString != null ? makeArgListQueryString.length : 0);
+        LockWait wait = null;
+        try {
+            while (true) {
+                try {
+                    Cursor cursor = sqliteDatabase.rawQuery(sql, makeArgListQueryString, cancellationSignal);
+                    Log.v("SQLiteDatabase rawQuery OK: {} {}", Log.THREAD, sql);
+                    return cursor;
+                } catch (SQLiteException e) {
+                    wait = awaitLock(e, wait);
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            failed(observed, e);
+            throw e;
+        } finally {
+            afterExecution(observed, lockWaitEnded(wait));
+        }
+    }
+
+    /**
+     * Proxy for the "rawQueryWithFactory" command.  The factory creates the cursor for the compiled
+     * query and can bind its parameters before the cursor first runs it.
+     *
+     * @throws SQLException
+     */
+    public Cursor rawQueryWithFactory(CursorFactory cursorFactory, String sql) throws SQLException {
+        return rawQueryWithFactory(cursorFactory, sql, null);
+    }
+
+    /**
+     * Proxy for the "rawQueryWithFactory" command with a signal that cancels the query.
+     *
+     * @throws SQLException
+     */
+    public Cursor rawQueryWithFactory(CursorFactory cursorFactory, String sql, CancellationSignal cancellationSignal) throws SQLException {
+        Log.v("SQLiteDatabase rawQueryWithFactory: {} {}", Log.THREAD, sql);
+        // the factory binds the parameters, count them in the sql
+        SQLDroidExecution observed = isObserved() ? beforeExecution("rawQueryWithFactory", sql,
+                SQLDroidSqlClassification.classify(sql).getParameterCount()) : null;
+        LockWait wait = null;
+        try {
+            while (true) {
+                try {
+                    Cursor cursor = sqliteDatabase.rawQueryWithFactory(cursorFactory, sql, null, null, cancellationSignal);
+                    Log.v("SQLiteDatabase rawQueryWithFactory OK: {} {}", Log.THREAD, sql);
+                    return cursor;
+                } catch (SQLiteException e) {
+                    wait = awaitLock(e, wait);
                 }
             }
-        } while (delta < timeout);
-        throw new SQLException("Timeout Expired");
+        } catch (SQLException | RuntimeException e) {
+            failed(observed, e);
+            throw e;
+        } finally {
+            afterExecution(observed, lockWaitEnded(wait));
+        }
     }
 
     /**
@@ -150,23 +382,25 @@ public class SQLiteDatabase {
      * @throws SQLException
      */
     public void execSQL(String sql, Object[] makeArgListQueryObject) throws SQLException {
-        Log.v("SQLiteDatabase execSQL: " + Thread.currentThread().getId() + " \"" + Thread.currentThread().getName() + "\" " + sql);
-        long timeNow = System.currentTimeMillis();
-        long delta = 0;
-        do {
-            try {
-                sqliteDatabase.execSQL(sql, makeArgListQueryObject);
-                Log.v("SQLiteDatabase execSQL OK: " + Thread.currentThread().getId() + " \"" + Thread.currentThread().getName() + "\" " + sql);
-                return;
-            } catch (SQLiteException e) {
-                if (isLockedException(e)) {
-                    delta = System.currentTimeMillis() - timeNow;
-                } else {
-                    throw SQLDroidConnection.chainException(e);
+        Log.v("SQLiteDatabase execSQL: {} {}", Log.THREAD, sql);
+        SQLDroidExecution observed = beforeExecution("execSQL", sql, makeArgListQueryObject != null ? makeArgListQueryObject.length : 0);
+        LockWait wait = null;
+        try {
+            while (true) {
+                try {
+                    sqliteDatabase.execSQL(sql, makeArgListQueryObject);
+                    Log.v("SQLiteDatabase execSQL OK: {} {}", Log.THREAD, sql);
+                    return;
+                } catch (SQLiteException e) {
+                    wait = awaitLock(e, wait);
                 }
             }
-        } while (delta < timeout);
-        throw new SQLException("Timeout Expired");
+        } catch (SQLException | RuntimeException e) {
+            failed(observed, e);
+            throw e;
+        } finally {
+            afterExecution(observed, lockWaitEnded(wait));
+        }
     }
 
     /**
@@ -175,23 +409,156 @@ public class SQLiteDatabase {
      * @throws SQLException
      */
     public void execSQL(String sql) throws SQLException {
-        Log.v("SQLiteDatabase execSQL: " + Thread.currentThread().getId() + " \"" + Thread.currentThread().getName() + "\" " + sql);
-        long timeNow = System.currentTimeMillis();
-        long delta = 0;
-        do {
-            try {
-                sqliteDatabase.execSQL(sql);
-                Log.v("SQLiteDatabase execSQL OK: " + Thread.currentThread().getId() + " \"" + Thread.currentThread().getName() + "\" " + sql);
-                return;
-            } catch (SQLiteException e) {
-                if (isLockedException(e)) {
-                    delta = System.currentTimeMillis() - timeNow;
-                } else {
-                    throw SQLDroidConnection.chainException(e);
+        Log.v("SQLiteDatabase execSQL: {} {}", Log.THREAD, sql);
+        SQLDroidExecution observed = beforeExecution("execSQL", sql, 0);
+        LockWait wait = null;
+        try {
+            while (true) {
+                try {
+                    sqliteDatabase.execSQL(sql);
+                    Log.v("SQLiteDatabase execSQL OK: {} {}", Log.THREAD, sql);
+                    return;
+                } catch (SQLiteException e) {
+                    wait = awaitLock(e, wait);
                 }
             }
-        } while (delta < timeout);
-        throw new SQLException("Timeout Expired");
+        } catch (SQLException | RuntimeException e) {
+            failed(observed, e);
+            throw e;
+        } finally {
+            afterExecution(observed, lockWaitEnded(wait));
+        }
+    }
+
+    /**
+     * Proxy for the "compileStatement" command.  The returned statement can be bound and executed
+     * repeatedly without handing the SQL text to SQLite again.
+     *
+     * @throws SQLException
+     */
+    public SQLiteStatement compileStatement(String sql) throws SQLException {
+        Log.v("SQLiteDatabase compileStatement: {} {}", Log.THREAD, sql);
+        LockWait wait = null;
+        try {
+            while (true) {
+                try {
+                    return sqliteDatabase.compileStatement(sql);
+                } catch (SQLiteException e) {
+                    wait = awaitLock(e, wait);
+                }
+            }
+        } finally {
+            lockWaitEnded(wait);
+        }
+    }
+
+    /**
+     * Executes a compiled statement that returns neither a row id nor an update count,
+     * for example DDL.
+     *
+     * @param sql the sql the statement was compiled from
+     * @throws SQLException
+     */
+    public void execute(SQLiteStatement statement, String sql) throws SQLException {
+        execStatement(statement, sql, StatementExecution.execute);
+    }
+
+    /**
+     * Executes a compiled INSERT statement.
+     *
+     * @param sql the sql the statement was compiled from
+     * @return the row id of the inserted row, or -1 if no row was inserted
+     * @throws SQLException
+     */
+    public long executeInsert(SQLiteStatement statement, String sql) throws SQLException {
+        return execStatement(statement, sql, StatementExecution.executeInsert);
+    }
+
+    /**
+     * Executes a compiled INSERT, UPDATE or DELETE statement.
+     *
+     * @param sql the sql the statement was compiled from
+     * @return the number of rows changed by the statement
+     * @throws SQLException
+     */
+    public int executeUpdateDelete(SQLiteStatement statement, String sql) throws SQLException {
+        return (int) execStatement(statement, sql, StatementExecution.executeUpdateDelete);
+    }
+
+    /**
+     * Executes a compiled statement in one of the ways in the "StatementExecution" enum.  This just
+     * allows the timeout code to be combined in one method.
+     *
+     * @param sql the sql the statement was compiled from, which the execution listeners are told
+     * @throws SQLException thrown if the timeout expires before the statement successfully executes.
+     */
+    public long execStatement(SQLiteStatement statement, String sql, StatementExecution execution) throws SQLException {
+        SQLDroidExecution observed = isObserved()
+                ? beforeExecution(execution.name(), sql, SQLDroidSqlClassification.classify(sql).getParameterCount()) : null;
+        LockWait wait = null;
+        try {
+            while (true) {
+                try {
+                    switch (execution) {
+                        case execute:
+                            statement.execute();
+                            return 0;
+                        case executeInsert:
+                            long rowId = statement.executeInsert();
+                            rowCount(observed, rowId != -1 ? 1 : 0);
+                            return rowId;
+                        case executeUpdateDelete:
+                            return rowCount(observed, statement.executeUpdateDelete());
+                    }
+                } catch (SQLiteException e) {
+                    wait = awaitLock(e, wait);
+                }
+            }
+        } catch (SQLException | RuntimeException e) {
+            failed(observed, e);
+            throw e;
+        } finally {
+            afterExecution(observed, lockWaitEnded(wait));
+        }
+    }
+
+    /**
+     * Binds the arguments to a compiled program using the same type mapping as
+     * <code>android.database.sqlite.SQLiteDatabase.execSQL(String, Object[])</code>, so that numbers
+     * are bound as INTEGER or REAL rather than as their string representation.
+     *
+     * @param program the compiled statement or query
+     * @param args    the arguments, in parameter order.  May be null.
+     */
+    public static void bindArguments(SQLiteProgram program, Object[] args) {
+        program.clearBindings();
+        if (args == null) {
+            return;
+        }
+        for (int i = 0; i < args.length; i++) {
+            bindArgument(program, i + 1, args[i]);
+        }
+    }
+
+    /**
+     * Binds one argument to a compiled program with the type mapping of <code>bindArguments</code>.
+     *
+     * @param index the index of the parameter, starting at 1
+     */
+    public static void bindArgument(SQLiteProgram program, int index, Object arg) {
+        if (arg == null) {
+            program.bindNull(index);
+        } else if (arg instanceof byte[]) {
+            program.bindBlob(index, (byte[]) arg);
+        } else if (arg instanceof Double || arg instanceof Float) {
+            program.bindDouble(index, ((Number) arg).doubleValue());
+        } else if (arg instanceof Long || arg instanceof Integer || arg instanceof Short || arg instanceof Byte) {
+            program.bindLong(index, ((Number) arg).longValue());
+        } else if (arg instanceof Boolean) {
+            program.bindLong(index, ((Boolean) arg) ? 1 : 0);
+        } else {
+            program.bindString(index, arg.toString());
+        }
     }
 
     /**
@@ -203,6 +570,25 @@ public class SQLiteDatabase {
         return sqliteDatabase;
     }
 
+    /**
+     * Enables write-ahead logging for the database, if it is not enabled yet.  Android then keeps a
+     * pool of native connections to the database: the thread of a transaction writes through the
+     * primary connection, while queries of other threads run on secondary connections, concurrently
+     * with each other and with the transaction.
+     *
+     * @return false if the database can not use write-ahead logging, as an in-memory database.
+     * @throws SQLException if a transaction is in progress.
+     */
+    public synchronized boolean enableWriteAheadLogging() throws SQLException {
+        try {
+            return sqliteDatabase.isWriteAheadLoggingEnabled() || sqliteDatabase.enableWriteAheadLogging();
+        } catch (IllegalStateException e) {
+            SQLException failure = new SQLException("Unable to enable write-ahead logging for " + dbQname + ": " + e.getMessage());
+            failure.initCause(e);
+            throw failure;
+        }
+    }
+
     /**
      * Checks if the current thread has a transaction pending in the database.
      *
@@ -219,33 +605,38 @@ public class SQLiteDatabase {
      * @throws SQLException thrown if the timeout expires before the method successfully executes.
      */
     public void execNoArgVoidMethod(Transaction transaction) throws SQLException {
-        long timeNow = System.currentTimeMillis();
-        long delta = 0;
-        do {
-            try {
-                switch (transaction) {
-                    case setTransactionSuccessful:
-                        sqliteDatabase.setTransactionSuccessful();
-                        return;
-                    case beginTransaction:
-                        sqliteDatabase.beginTransaction();
-                        return;
-                    case endTransaction:
-                        sqliteDatabase.endTransaction();
-                        return;
-                    case close:
-                        sqliteDatabase.close();
-                        return;
-                }
-            } catch (SQLiteException e) {
-                if (isLockedException(e)) {
-                    delta = System.currentTimeMillis() - timeNow;
-                } else {
-                    throw SQLDroidConnection.chainException(e);
+        SQLDroidExecution observed = beforeExecution(transaction.name(), null, 0);
+        LockWait wait = null;
+        try {
+            while (true) {
+                try {
+                    switch (transaction) {
+                        case setTransactionSuccessful:
+                            sqliteDatabase.setTransactionSuccessful();
+                            return;
+                        case beginTransaction:
+                            sqliteDatabase.beginTransaction();
+                            return;
+                        case beginTransactionNonExclusive:
+                            sqliteDatabase.beginTransactionNonExclusive();
+                            return;
+                        case endTransaction:
+                            sqliteDatabase.endTransaction();
+                            return;
+                        case close:
+                            sqliteDatabase.close();
+                            return;
+                    }
+                } catch (SQLiteException e) {
+                    wait = awaitLock(e, wait);
                 }
             }
-        } while (delta < timeout);
-        throw new SQLException("Timeout Expired");
+        } catch (SQLException | RuntimeException e) {
+            failed(observed, e);
+            throw e;
+        } finally {
+            afterExecution(observed, lockWaitEnded(wait));
+        }
     }
 
     /**
@@ -266,6 +657,16 @@ public class SQLiteDatabase {
         execNoArgVoidMethod(Transaction.beginTransaction);
     }
 
+    /**
+     * Call the "beginTransactionNonExclusive" method on the database, which begins an IMMEDIATE
+     * transaction instead of an EXCLUSIVE one.
+     *
+     * @throws SQLException
+     */
+    public void beginTransactionNonExclusive() throws SQLException {
+        execNoArgVoidMethod(Transaction.beginTransactionNonExclusive);
+    }
+
     /**
      * Call the "endTransaction" method on the database.
      *
@@ -281,36 +682,66 @@ public class SQLiteDatabase {
      * @throws SQLException
      */
     public void close() throws SQLException {
+        synchronized (this) {
+            if (writeBehindQueue != null) {
+                writeBehindQueue.close();
+                writeBehindQueue = null;
+            }
+        }
         execNoArgVoidMethod(Transaction.close);
     }
 
+    /**
+     * Returns the write-behind queue of the database, starting it with the given settings if this
+     * is the first use.  The queue is closed, after writing what is left in it, when the database is.
+     *
+     * @see SQLDroidWriteBehindQueue#SQLDroidWriteBehindQueue(SQLiteDatabase, int, long, int, long)
+     */
+    synchronized SQLDroidWriteBehindQueue getWriteBehindQueue(int queueSize, long commitInterval,
+                                                              int maxWritesPerTransaction, long offerTimeout) {
+        if (writeBehindQueue == null) {
+            writeBehindQueue = new SQLDroidWriteBehindQueue(this, queueSize, commitInterval, maxWritesPerTransaction, offerTimeout);
+        }
+        return writeBehindQueue;
+    }
+
 
     /**
-     * The count of changed rows.  On JNA platforms, this is a call to sqlite3_changes
-     * On Android, it's a convoluted call to a package-private method (or, if that fails, the
-     * response is '1'.
+     * The count of rows changed by the most recently completed INSERT, UPDATE or DELETE on the
+     * connection of the current thread.  This is a call to sqlite3_changes through a compiled
+     * statement, so it needs no cursor.  Prefer the count returned by
+     * {@link #executeUpdateDelete(SQLiteStatement, String)}, which needs no query at all.
+     *
+     * @return the count of changed rows or -1 if it could not be determined
      */
     public int changedRowCount() {
-        if (getChangedRowCount == null) {
-            try {  // JNA/J2SE compatibility method.
-                getChangedRowCount = sqliteDatabase.getClass().getMethod("changedRowCount", (Class<?>[]) null);
-            } catch (Exception any) {
-                try {
-                    // Android
-                    getChangedRowCount = sqliteDatabase.getClass().getDeclaredMethod("lastChangeCount", (Class<?>[]) null);
-                    getChangedRowCount.setAccessible(true);
-                } catch (Exception e) {
-                    // ignore
-                }
-            }
-        }
-        if (getChangedRowCount != null) {
+        try {
+            SQLiteStatement changes = compileStatement("select changes()");
             try {
-                return ((Integer) getChangedRowCount.invoke(sqliteDatabase, (Object[]) null)).intValue();
-            } catch (Exception e) {
-                // ignore
+                return (int) changes.simpleQueryForLong();
+            } finally {
+                changes.close();
             }
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the row id of the last row inserted by the connection of the current thread.  Android
+     * only keeps that connection for the thread within a transaction, outside of one the query may
+     * run on another connection of its pool.
+     *
+     * @throws SQLException
+     */
+    public long lastInsertRowId() throws SQLException {
+        SQLiteStatement rowId = compileStatement("select last_insert_rowid()");
+        try {
+            return rowId.simpleQueryForLong();
+        } catch (SQLiteException e) {
+            throw SQLDroidConnection.chainException(e);
+        } finally {
+            rowId.close();
         }
-        return 1;  // assume that the insert/update succeeded in changing exactly one row (terrible assumption, but I have nothing better).
     }
 }
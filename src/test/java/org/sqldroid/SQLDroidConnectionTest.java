@@ -1,5 +1,12 @@
 package org.sqldroid;
 
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.database.sqlite.SQLiteQuery;
+import android.database.sqlite.SQLiteStatement;
+
 import org.assertj.core.api.ThrowableAssert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -9,12 +16,26 @@ import org.robolectric.annotation.Config;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Java6Assertions.assertThat;
 import static org.assertj.core.api.Java6Assertions.assertThatThrownBy;
+import static org.junit.Assert.fail;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(sdk = 19)
@@ -47,6 +68,33 @@ public class SQLDroidConnectionTest {
         conn.close();
     }
 
+    @Test
+    public void shouldTakePropertiesFromQueryPartOfURL() throws SQLException {
+        File dbFile = cleanDbFile("query-properties.db");
+        String jdbcUrl = "jdbc:sqlite:" + dbFile.getAbsolutePath() + "?timeout=30&"
+                + SQLDroidDriver.CURSOR_WINDOW_SIZE + "=4096&" + SQLDroidDriver.CURSOR_FACTORY + "=" + CountingCursorFactory.class.getName();
+        SQLDroidConnection conn = (SQLDroidConnection) new SQLDroidDriver().connect(jdbcUrl, new Properties());
+        assertThat(conn.getCursorWindowSize()).isEqualTo(4096);
+        assertThat(conn.getCursorFactory()).isInstanceOf(CountingCursorFactory.class);
+
+        int cursors = CountingCursorFactory.cursors;
+        ResultSet rs = conn.createStatement().executeQuery("select 1");
+        assertThat(rs.next()).isTrue();
+        rs.close();
+        assertThat(CountingCursorFactory.cursors).isEqualTo(cursors + 1);
+        conn.close();
+    }
+
+    public static class CountingCursorFactory implements CursorFactory {
+        static int cursors = 0;
+
+        @Override
+        public Cursor newCursor(android.database.sqlite.SQLiteDatabase db, SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+            cursors++;
+            return new SQLiteCursor(driver, editTable, query);
+        }
+    }
+
     @Test
     public void shouldDealWithInvalidDirectoryGivenAsFile() throws SQLException, IOException {
         File dbFile = cleanDbFile("db-as-dir.db");
@@ -131,8 +179,562 @@ public class SQLDroidConnectionTest {
         connection2.close();
     }
 
+    @Test
+    public void shouldReturnClosedPoolableStatementsToTheCache() throws SQLException {
+        File dbFile = cleanDbFile("statement-cache.db");
+        final String jdbcUrl = "jdbc:sqlite:" + dbFile.getAbsolutePath();
+        SQLDroidConnection conn = (SQLDroidConnection) new SQLDroidDriver().connect(jdbcUrl, new Properties());
+        conn.createStatement().execute("create table cachetest (id int)");
+        String insert = "insert into cachetest (id) values (?)";
+
+        SQLDroidPreparedStatement first = (SQLDroidPreparedStatement) conn.prepareStatement(insert);
+        SQLiteStatement compiled = first.statement;
+        first.close();
+
+        SQLDroidPreparedStatement second = (SQLDroidPreparedStatement) conn.prepareStatement(insert);
+        assertThat(second.statement).isSameAs(compiled);
+        second.setInt(1, 1);
+        assertThat(second.executeUpdate()).isEqualTo(1);
+        second.setPoolable(false);
+        second.close();
+
+        SQLDroidPreparedStatement third = (SQLDroidPreparedStatement) conn.prepareStatement(insert);
+        assertThat(third.statement).isNotSameAs(compiled);
+        third.close();
+        conn.close();
+    }
+
     private static final File DB_DIR = new File("./target/data/org.sqldroid/databases/");
 
+    @Test
+    public void shouldCommitWritesSubmittedByAllConnections() throws Exception {
+        File dbFile = cleanDbFile("write-behind.db");
+        final String jdbcUrl = "jdbc:sqlite:" + dbFile.getAbsolutePath();
+        Properties properties = new Properties();
+        properties.put(SQLDroidDriver.WRITE_BEHIND_COMMIT_INTERVAL, "20");
+        SQLDroidConnection first = (SQLDroidConnection) new SQLDroidDriver().connect(jdbcUrl, properties);
+        SQLDroidConnection second = (SQLDroidConnection) new SQLDroidDriver().connect(jdbcUrl, properties);
+        first.createStatement().execute("create table readings (id integer primary key, value double)");
+        first.createStatement().execute("create table guarded (id integer, unique (id) on conflict rollback)");
+
+        List<Future<int[]>> writes = new ArrayList<Future<int[]>>();
+        for (int i = 0; i < 10; i++) {
+            SQLDroidConnection conn = i % 2 == 0 ? first : second;
+            writes.add(conn.submitUpdate("insert into readings (id, value) values (?, ?)", i, i * 0.5));
+        }
+        writes.add(first.submitBatch("update readings set value = ? where id = ?",
+                Arrays.asList(new Object[]{1.0, 1}, new Object[]{2.0, 2})));
+        Future<int[]> duplicate = second.submitUpdate("insert into readings (id, value) values (?, ?)", 1, 0.0);
+        // the arguments are copied when the write is submitted
+        Object[] reused = {20, 1.5};
+        writes.add(first.submitBatch("insert into readings (id, value) values (?, ?)", Collections.singletonList(reused)));
+        reused[0] = 1;
+        // a failing row rolls back the rows of its write before it
+        Future<int[]> partial = second.submitBatch("insert into readings (id, value) values (?, ?)",
+                Arrays.asList(new Object[]{30, 100.0}, new Object[]{2, 100.0}));
+        // a conflict that rolls back the transaction only fails its own write
+        Future<int[]> guarded = first.submitUpdate("insert into guarded (id) values (?)", 1);
+        Future<int[]> guardedDuplicate = second.submitUpdate("insert into guarded (id) values (?)", 1);
+        Future<int[]> guardedAfter = first.submitUpdate("insert into guarded (id) values (?)", 2);
+        assertThat(first.flushWrites(10, TimeUnit.SECONDS)).isTrue();
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(writes.get(i).get()).containsExactly(1);
+        }
+        assertThat(writes.get(10).get()).containsExactly(1, 1);
+        assertThat(writes.get(11).get()).containsExactly(1);
+        try {
+            duplicate.get();
+            fail("expected the duplicate key to fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(SQLException.class);
+        }
+        try {
+            partial.get();
+            fail("expected the duplicate key to fail");
+        } catch (ExecutionException e) {
+            assertThat(((BatchUpdateException) e.getCause()).getUpdateCounts()).containsExactly(1);
+        }
+        assertThat(guarded.get()).containsExactly(1);
+        assertThat(guardedAfter.get()).containsExactly(1);
+        try {
+            guardedDuplicate.get();
+            fail("expected the duplicate key to fail");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(SQLException.class);
+        }
+        try (ResultSet rs = second.createStatement().executeQuery("select count(*), sum(value) from readings")) {
+            rs.next();
+            assertThat(rs.getInt(1)).isEqualTo(11);
+            assertThat(rs.getDouble(2)).isEqualTo(25.5);
+        }
+        try (ResultSet rs = second.createStatement().executeQuery("select count(*) from guarded")) {
+            rs.next();
+            assertThat(rs.getInt(1)).isEqualTo(2);
+        }
+        try {
+            first.submitUpdate("commit");
+            fail("expected the writer to refuse to end its transaction");
+        } catch (SQLException e) {
+            assertThat(e.getMessage()).contains("transactions");
+        }
+        second.close();
+        first.close();
+    }
+
+    @Test
+    public void shouldOnlyReadThroughReadOnlyConnections() throws SQLException {
+        File dbFile = cleanDbFile("read-only.db");
+        final String jdbcUrl = "jdbc:sqlite:" + dbFile.getAbsolutePath();
+        Properties properties = new Properties();
+        properties.setProperty(SQLDroidDriver.WRITE_AHEAD_LOGGING, "true");
+        Connection writer = new SQLDroidDriver().connect(jdbcUrl, properties);
+        writer.createStatement().executeUpdate("create table readings (id integer primary key)");
+        writer.createStatement().executeUpdate("insert into readings values (1)");
+
+        final Connection reader = new SQLDroidDriver().connect(jdbcUrl, properties);
+        reader.setReadOnly(true);
+        assertThat(reader.isReadOnly()).isTrue();
+        reader.setAutoCommit(false);
+        try (ResultSet rs = reader.createStatement().executeQuery("select count(*) from readings")) {
+            assertThat(rs.next()).isTrue();
+            assertThat(rs.getInt(1)).isEqualTo(1);
+        }
+        assertThatThrownBy(new ThrowableAssert.ThrowingCallable() {
+            @Override
+            public void call() throws Throwable {
+                reader.createStatement().executeUpdate("insert into readings values (2)");
+            }
+        }).isInstanceOf(SQLException.class);
+        for (final String pragma : new String[]{"PRAGMA user_version = 5", "PRAGMA journal_mode = DELETE", "PRAGMA wal_checkpoint"}) {
+            assertThatThrownBy(new ThrowableAssert.ThrowingCallable() {
+                @Override
+                public void call() throws Throwable {
+                    reader.createStatement().execute(pragma);
+                }
+            }).isInstanceOf(SQLException.class).hasMessageContaining("read-only");
+        }
+        try (ResultSet rs = reader.createStatement().executeQuery("PRAGMA table_info(readings)")) {
+            assertThat(rs.next()).isTrue();
+        }
+        assertThatThrownBy(new ThrowableAssert.ThrowingCallable() {
+            @Override
+            public void call() throws Throwable {
+                reader.setReadOnly(false);
+            }
+        }).isInstanceOf(SQLException.class);
+        reader.commit();
+        reader.setAutoCommit(true);
+        reader.setReadOnly(false);
+        reader.createStatement().executeUpdate("insert into readings values (2)");
+        reader.close();
+        writer.close();
+    }
+
+    @Test
+    public void shouldReuseAndResetPooledConnections() throws Exception {
+        File dbFile = cleanDbFile("pooled.db");
+        final String jdbcUrl = "jdbc:sqldroid:" + dbFile.getAbsolutePath();
+        final DroidDataSource dataSource = new DroidDataSource("org.sqldroid", "pooled") {
+            @Override
+            String url() {
+                return jdbcUrl;
+            }
+        };
+        dataSource.setMaxPoolSize(1);
+        dataSource.setLoginTimeout(1);
+
+        Connection first = dataSource.getConnection();
+        SQLDroidConnection pooled = first.unwrap(SQLDroidConnection.class);
+        first.createStatement().executeUpdate("create table pooled (id integer primary key)");
+        first.setAutoCommit(false);
+        first.createStatement().executeUpdate("insert into pooled values (1)");
+        final List<SQLDroidExecution> executions = new ArrayList<SQLDroidExecution>();
+        pooled.addExecutionListener(new SQLDroidExecutionListener() {
+            @Override
+            public void beforeExecution(SQLDroidExecution execution) {
+            }
+
+            @Override
+            public void afterExecution(SQLDroidExecution execution) {
+                executions.add(execution);
+            }
+        });
+        pooled.setTransactionMode(SQLDroidTransactionMode.IMMEDIATE);
+        pooled.setRewriteBatchedInserts(true);
+        pooled.setLazyQueryExecution(true);
+        pooled.setCursorWindowSize(4096);
+        Statement open = first.createStatement();
+        assertThat(open.getConnection()).isSameAs(first);
+        try (PreparedStatement prepared = first.prepareStatement("select * from pooled")) {
+            assertThat(prepared.getConnection()).isSameAs(first);
+        }
+        ResultSet rs = open.executeQuery("select * from pooled");
+        assertThatThrownBy(new ThrowableAssert.ThrowingCallable() {
+            @Override
+            public void call() throws Throwable {
+                dataSource.getConnection();
+            }
+        }).isInstanceOf(java.sql.SQLTimeoutException.class);
+        first.close();
+        assertThat(first.isClosed()).isTrue();
+        assertThat(open.isClosed()).isTrue();
+        assertThat(dataSource.getIdleCount()).isEqualTo(1);
+
+        Connection second = dataSource.getConnection();
+        assertThat(second.unwrap(SQLDroidConnection.class)).isSameAs(pooled);
+        assertThat(second.getAutoCommit()).isTrue();
+        assertThat(pooled.getTransactionMode()).isEqualTo(SQLDroidTransactionMode.EXCLUSIVE);
+        assertThat(pooled.isRewriteBatchedInserts()).isFalse();
+        assertThat(pooled.isLazyQueryExecution()).isFalse();
+        assertThat(pooled.getCursorWindowSize()).isEqualTo(0);
+        executions.clear();
+        try (ResultSet count = second.createStatement().executeQuery("select count(*) from pooled")) {
+            assertThat(count.next()).isTrue();
+            assertThat(count.getInt(1)).isEqualTo(0);
+        }
+        assertThat(executions).isEmpty();
+        second.close();
+
+        dataSource.close();
+        assertThat(dataSource.getIdleCount()).isEqualTo(0);
+        assertThat(pooled.isClosed()).isTrue();
+    }
+
+    @Test
+    public void shouldCloseIdleConnectionsOfAQuietPool() throws Exception {
+        File dbFile = cleanDbFile("pooled-idle.db");
+        final String jdbcUrl = "jdbc:sqldroid:" + dbFile.getAbsolutePath();
+        DroidDataSource dataSource = new DroidDataSource("org.sqldroid", "pooled-idle") {
+            @Override
+            String url() {
+                return jdbcUrl;
+            }
+        };
+        dataSource.setIdleTimeout(50);
+        Connection borrowed = dataSource.getConnection();
+        SQLDroidConnection pooled = borrowed.unwrap(SQLDroidConnection.class);
+        borrowed.close();
+        assertThat(dataSource.getIdleCount()).isEqualTo(1);
+
+        // nobody borrows or returns a connection, the timer closes it
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dataSource.getIdleCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertThat(dataSource.getIdleCount()).isEqualTo(0);
+        assertThat(pooled.isClosed()).isTrue();
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldShareTheDatabaseUntilTheLastConnectionCloses() throws SQLException {
+        String firstUrl = "jdbc:sqldroid:" + cleanDbFile("shared-first.db").getAbsolutePath();
+        String secondUrl = "jdbc:sqldroid:" + cleanDbFile("shared-second.db").getAbsolutePath();
+        SQLDroidConnection first = (SQLDroidConnection) new SQLDroidDriver().connect(firstUrl, new Properties());
+        SQLDroidConnection again = (SQLDroidConnection) new SQLDroidDriver().connect(firstUrl, new Properties());
+        SQLDroidConnection second = (SQLDroidConnection) new SQLDroidDriver().connect(secondUrl, new Properties());
+        assertThat(again.getDb()).isSameAs(first.getDb());
+        assertThat(second.getDb()).isNotSameAs(first.getDb());
+
+        android.database.sqlite.SQLiteDatabase shared = first.getDb().getSqliteDatabase();
+        first.close();
+        assertThat(shared.isOpen()).isTrue();
+        assertThat(again.isClosed()).isFalse();
+        again.close();
+        assertThat(shared.isOpen()).isFalse();
+
+        SQLDroidConnection reopened = (SQLDroidConnection) new SQLDroidDriver().connect(firstUrl, new Properties());
+        assertThat(reopened.getDb().getSqliteDatabase().isOpen()).isTrue();
+        reopened.close();
+        second.close();
+    }
+
+    @Test
+    public void shouldRollBackToSavepoints() throws SQLException {
+        String jdbcUrl = "jdbc:sqldroid:" + cleanDbFile("savepoints.db").getAbsolutePath();
+        final Connection conn = new SQLDroidDriver().connect(jdbcUrl, new Properties());
+        conn.createStatement().executeUpdate("create table steps (id integer primary key)");
+        assertThatThrownBy(new ThrowableAssert.ThrowingCallable() {
+            @Override
+            public void call() throws Throwable {
+                conn.setSavepoint();
+            }
+        }).isInstanceOf(SQLException.class);
+
+        conn.setAutoCommit(false);
+        conn.createStatement().executeUpdate("insert into steps values (1)");
+        Savepoint first = conn.setSavepoint("first");
+        conn.createStatement().executeUpdate("insert into steps values (2)");
+        final Savepoint second = conn.setSavepoint();
+        conn.createStatement().executeUpdate("insert into steps values (3)");
+        conn.rollback(first);
+        assertThat(countSteps(conn)).isEqualTo(1);
+        assertThatThrownBy(new ThrowableAssert.ThrowingCallable() {
+            @Override
+            public void call() throws Throwable {
+                conn.rollback(second);
+            }
+        }).isInstanceOf(SQLException.class);
+
+        conn.createStatement().executeUpdate("insert into steps values (4)");
+        conn.releaseSavepoint(first);
+        conn.commit();
+        conn.setAutoCommit(true);
+        assertThat(countSteps(conn)).isEqualTo(2);
+        assertThat(first.getSavepointName()).isEqualTo("first");
+        conn.close();
+    }
+
+    private static int countSteps(Connection conn) throws SQLException {
+        try (ResultSet rs = conn.createStatement().executeQuery("select count(*) from steps")) {
+            assertThat(rs.next()).isTrue();
+            return rs.getInt(1);
+        }
+    }
+
+    @Test
+    public void shouldBeginTransactionsInTheConfiguredMode() throws SQLException {
+        final String jdbcUrl = "jdbc:sqldroid:" + cleanDbFile("transaction-mode.db").getAbsolutePath();
+        Properties properties = new Properties();
+        properties.setProperty(SQLDroidDriver.TRANSACTION_MODE, "immediate");
+        SQLDroidConnection conn = (SQLDroidConnection) new SQLDroidDriver().connect(jdbcUrl, properties);
+        assertThat(conn.getTransactionMode()).isEqualTo(SQLDroidTransactionMode.IMMEDIATE);
+        conn.createStatement().executeUpdate("create table modes (id integer primary key)");
+
+        conn.setAutoCommit(false);
+        conn.createStatement().executeUpdate("insert into modes values (1)");
+        conn.commit();
+        conn.setAutoCommit(true);
+
+        conn.beginTransaction(SQLDroidTransactionMode.EXCLUSIVE);
+        assertThat(conn.getAutoCommit()).isFalse();
+        assertThat(conn.getTransactionMode()).isEqualTo(SQLDroidTransactionMode.IMMEDIATE);
+        conn.createStatement().executeUpdate("insert into modes values (2)");
+        conn.rollback();
+        conn.setAutoCommit(true);
+        try (ResultSet rs = conn.createStatement().executeQuery("select count(*) from modes")) {
+            assertThat(rs.next()).isTrue();
+            assertThat(rs.getInt(1)).isEqualTo(1);
+        }
+        conn.close();
+
+        final Properties unknown = new Properties();
+        unknown.setProperty(SQLDroidDriver.TRANSACTION_MODE, "optimistic");
+        assertThatThrownBy(new ThrowableAssert.ThrowingCallable() {
+            @Override
+            public void call() throws Throwable {
+                new SQLDroidDriver().connect(jdbcUrl, unknown);
+            }
+        }).isInstanceOf(SQLException.class);
+    }
+
+    @Test
+    public void shouldBeginTransactionsWithTheNextStatement() throws SQLException {
+        String jdbcUrl = "jdbc:sqldroid:" + cleanDbFile("lazy-transaction.db").getAbsolutePath();
+        SQLDroidConnection conn = (SQLDroidConnection) new SQLDroidDriver().connect(jdbcUrl, new Properties());
+        conn.createStatement().executeUpdate("create table units (id integer primary key)");
+
+        conn.setAutoCommit(false);
+        assertThat(conn.getDb().inTransaction()).isFalse();
+        conn.createStatement().executeUpdate("insert into units values (1)");
+        assertThat(conn.getDb().inTransaction()).isTrue();
+        conn.commit();
+        assertThat(conn.getDb().inTransaction()).isFalse();
+
+        conn.createStatement().executeUpdate("insert into units values (2)");
+        assertThat(conn.getDb().inTransaction()).isTrue();
+        conn.rollback();
+        assertThat(conn.getDb().inTransaction()).isFalse();
+        conn.commit();
+        conn.setAutoCommit(true);
+
+        try (ResultSet rs = conn.createStatement().executeQuery("select count(*) from units")) {
+            assertThat(rs.next()).isTrue();
+            assertThat(rs.getInt(1)).isEqualTo(1);
+        }
+        conn.close();
+    }
+
+    @Test
+    public void shouldBackOffUntilTheTimeout() {
+        SQLDroidBackoffRetryPolicy policy = new SQLDroidBackoffRetryPolicy(1000, 10, 80);
+        assertThat(policy.nextDelay(1, 0)).isBetween(5L, 10L);
+        assertThat(policy.nextDelay(2, 10)).isBetween(10L, 20L);
+        assertThat(policy.nextDelay(4, 100)).isBetween(40L, 80L);
+        assertThat(policy.nextDelay(10, 500)).isBetween(40L, 80L);
+        assertThat(policy.nextDelay(10, 990)).isBetween(1L, 10L);
+        assertThat(policy.nextDelay(11, 1000)).isNegative();
+        assertThat(new SQLDroidBackoffRetryPolicy(0, 1, 50).nextDelay(1, 0)).isNegative();
+    }
+
+    @Test
+    public void shouldOpenTheDatabaseWithTheRetryPolicy() throws SQLException {
+        String jdbcUrl = "jdbc:sqldroid:" + cleanDbFile("retry-policy.db").getAbsolutePath();
+        Properties properties = new Properties();
+        properties.put(SQLDroidDriver.RETRY_POLICY, new SQLDroidBackoffRetryPolicy(2000, 1, 20, 500));
+        SQLDroidConnection conn = (SQLDroidConnection) new SQLDroidDriver().connect(jdbcUrl, properties);
+        try (ResultSet rs = conn.createStatement().executeQuery("pragma busy_timeout")) {
+            assertThat(rs.next()).isTrue();
+            assertThat(rs.getInt(1)).isEqualTo(500);
+        }
+        SQLDroidLockWaitStatistics statistics = conn.getLockWaitStatistics();
+        assertThat(statistics.getWaitCount()).isEqualTo(0);
+        assertThat(statistics.getWaitHistogram()).hasSize(SQLDroidLockWaitStatistics.getWaitBounds().length + 1);
+        conn.close();
+
+        final Properties unknown = new Properties();
+        unknown.setProperty(SQLDroidDriver.RETRY_POLICY, "org.sqldroid.NoSuchPolicy");
+        final String otherUrl = "jdbc:sqldroid:" + cleanDbFile("unknown-retry-policy.db").getAbsolutePath();
+        assertThatThrownBy(new ThrowableAssert.ThrowingCallable() {
+            @Override
+            public void call() throws Throwable {
+                new SQLDroidDriver().connect(otherUrl, unknown);
+            }
+        }).isInstanceOf(SQLException.class);
+    }
+
+    @Test
+    public void shouldOnlyBuildLogMessagesOfEnabledLevels() {
+        final List<String> messages = new ArrayList<String>();
+        final int[] built = {0};
+        Object argument = new Object() {
+            @Override
+            public String toString() {
+                built[0]++;
+                return "select 1";
+            }
+        };
+        int level = Log.LEVEL;
+        Log.ILog log = Log.LOG;
+        Log.LEVEL = android.util.Log.DEBUG;
+        Log.LOG = new Log.AndroidLog() {
+            @Override
+            public void d(String message) {
+                messages.add(message);
+            }
+
+            @Override
+            public void v(String message) {
+                messages.add(message);
+            }
+        };
+        try {
+            Log.v("execSQL: {} {}", Log.THREAD, argument);
+            assertThat(built[0]).isEqualTo(0);
+            assertThat(messages).isEmpty();
+            Log.d("execSQL: {} {}", Log.THREAD, argument);
+            assertThat(built[0]).isEqualTo(1);
+            assertThat(messages).containsExactly("execSQL: " + Thread.currentThread().getId()
+                    + " \"" + Thread.currentThread().getName() + "\" select 1");
+            assertThat(Log.isLoggable(android.util.Log.VERBOSE)).isFalse();
+            assertThat(Log.isLoggable(android.util.Log.INFO)).isTrue();
+        } finally {
+            Log.LEVEL = level;
+            Log.LOG = log;
+        }
+    }
+
+    @Test
+    public void shouldTellExecutionListenersAboutEachOperation() throws SQLException {
+        String jdbcUrl = "jdbc:sqldroid:" + cleanDbFile("execution-listener.db").getAbsolutePath();
+        final List<SQLDroidExecution> started = new ArrayList<SQLDroidExecution>();
+        final List<SQLDroidExecution> ended = new ArrayList<SQLDroidExecution>();
+        SQLDroidExecutionListener listener = new SQLDroidExecutionListener() {
+            @Override
+            public void beforeExecution(SQLDroidExecution execution) {
+                assertThat(execution.getElapsedNanos()).isEqualTo(-1);
+                started.add(execution);
+            }
+
+            @Override
+            public void afterExecution(SQLDroidExecution execution) {
+                ended.add(execution);
+            }
+        };
+        SQLDroidConnection conn = (SQLDroidConnection) new SQLDroidDriver().connect(jdbcUrl, new Properties());
+        conn.addExecutionListener(listener);
+        SQLDroidDriver.setComponentTag("sync");
+        try {
+            final Statement stmt = conn.createStatement();
+            stmt.execute("create table traced (id integer)");
+            PreparedStatement insert = conn.prepareStatement("insert into traced (id) values (?)");
+            insert.setInt(1, 42);
+            assertThat(insert.executeUpdate()).isEqualTo(1);
+            insert.close();
+            assertThatThrownBy(new ThrowableAssert.ThrowingCallable() {
+                @Override
+                public void call() throws Throwable {
+                    stmt.executeQuery("select * from missing");
+                }
+            }).isInstanceOf(SQLException.class);
+            stmt.close();
+        } finally {
+            SQLDroidDriver.setComponentTag(null);
+        }
+        assertThat(ended).isEqualTo(started);
+
+        SQLDroidExecution inserted = null;
+        SQLDroidExecution failed = null;
+        for (SQLDroidExecution execution : ended) {
+            assertThat(execution.getComponentTag()).isEqualTo("sync");
+            assertThat(execution.getElapsedNanos()).isGreaterThanOrEqualTo(0);
+            if ("insert into traced (id) values (?)".equals(execution.getSql())) {
+                inserted = execution;
+            } else if (execution.getFailure() != null) {
+                failed = execution;
+            }
+        }
+        assertThat(inserted).isNotNull();
+        assertThat(inserted.getParameterCount()).isEqualTo(1);
+        assertThat(inserted.getRowCount()).isEqualTo(1);
+        assertThat(inserted.getLockWaitMillis()).isEqualTo(0);
+        assertThat(inserted.getFailure()).isNull();
+        assertThat(failed).isNotNull();
+        assertThat(failed.getSql()).isEqualTo("select * from missing");
+
+        // the listener of the connection is removed when it is closed
+        conn.close();
+        int count = ended.size();
+        Connection other = new SQLDroidDriver().connect(jdbcUrl, new Properties());
+        other.createStatement().execute("delete from traced");
+        other.close();
+        assertThat(ended).hasSize(count);
+    }
+
+    @Test
+    public void shouldKeepTimeoutsAndCloseWhenAborted() throws SQLException {
+        File dbFile = cleanDbFile("abort.db");
+        final String jdbcUrl = "jdbc:sqlite:" + dbFile.getAbsolutePath();
+        Connection connection = new SQLDroidDriver().connect(jdbcUrl, new Properties());
+        final Statement statement = connection.createStatement();
+        assertThat(statement.getQueryTimeout()).isEqualTo(0);
+        statement.setQueryTimeout(5);
+        assertThat(statement.getQueryTimeout()).isEqualTo(5);
+        assertThatThrownBy(new ThrowableAssert.ThrowingCallable() {
+            @Override
+            public void call() throws Throwable {
+                statement.setQueryTimeout(-1);
+            }
+        }).isInstanceOf(SQLException.class);
+        connection.setNetworkTimeout(null, 1000);
+        assertThat(connection.getNetworkTimeout()).isEqualTo(1000);
+
+        ResultSet rs = statement.executeQuery("select 1");
+        assertThat(rs.next()).isTrue();
+        final List<Runnable> closes = new ArrayList<Runnable>();
+        connection.abort(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                closes.add(command);
+            }
+        });
+        assertThat(connection.isClosed()).isTrue();
+        assertThat(closes).hasSize(1);
+        statement.close();
+        closes.get(0).run();
+    }
+
     private File cleanDbFile(String filename) {
         DB_DIR.mkdirs();
         assertThat(DB_DIR).isDirectory();
@@ -0,0 +1,104 @@
+package org.sqldroid;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Java6Assertions.assertThat;
+
+public class SQLDroidSqlClassificationTest {
+
+    @Test
+    public void shouldClassifyByLeadingKeyword() {
+        assertThat(kindOf("select * from dummytable")).isEqualTo(SQLDroidSqlClassification.Kind.SELECT);
+        assertThat(kindOf("  \n\tInsert into dummytable values (1)")).isEqualTo(SQLDroidSqlClassification.Kind.INSERT);
+        assertThat(kindOf("REPLACE INTO dummytable VALUES (1)")).isEqualTo(SQLDroidSqlClassification.Kind.INSERT);
+        assertThat(kindOf("update dummytable set value = 1")).isEqualTo(SQLDroidSqlClassification.Kind.UPDATE);
+        assertThat(kindOf("delete from dummytable")).isEqualTo(SQLDroidSqlClassification.Kind.DELETE);
+        assertThat(kindOf("CREATE TABLE dummytable (id INTEGER)")).isEqualTo(SQLDroidSqlClassification.Kind.DDL);
+        assertThat(kindOf("pragma table_info('dummytable')")).isEqualTo(SQLDroidSqlClassification.Kind.PRAGMA);
+        assertThat(kindOf("EXPLAIN QUERY PLAN select 1")).isEqualTo(SQLDroidSqlClassification.Kind.EXPLAIN);
+        assertThat(kindOf("begin immediate")).isEqualTo(SQLDroidSqlClassification.Kind.TRANSACTION);
+        assertThat(kindOf("ATTACH DATABASE ? AS other")).isEqualTo(SQLDroidSqlClassification.Kind.ATTACH);
+        assertThat(kindOf("detach other")).isEqualTo(SQLDroidSqlClassification.Kind.ATTACH);
+        assertThat(kindOf("")).isEqualTo(SQLDroidSqlClassification.Kind.OTHER);
+    }
+
+    @Test
+    public void shouldSkipCommentsBeforeTheKeyword() {
+        assertThat(kindOf("-- a comment\nselect 1")).isEqualTo(SQLDroidSqlClassification.Kind.SELECT);
+        assertThat(kindOf("/* delete */ select 1")).isEqualTo(SQLDroidSqlClassification.Kind.SELECT);
+    }
+
+    @Test
+    public void shouldClassifyWithStatementsByTheirMainKeyword() {
+        SQLDroidSqlClassification select = SQLDroidSqlClassification.classify(
+                "WITH t(\"delete\") AS (SELECT 'insert' FROM dummytable) SELECT * FROM t");
+        assertThat(select.getKind()).isEqualTo(SQLDroidSqlClassification.Kind.SELECT);
+        assertThat(select.isQuery()).isTrue();
+
+        SQLDroidSqlClassification delete = SQLDroidSqlClassification.classify(
+                "with old as (select id from dummytable) delete from dummytable where id in old");
+        assertThat(delete.getKind()).isEqualTo(SQLDroidSqlClassification.Kind.DELETE);
+        assertThat(delete.isQuery()).isFalse();
+    }
+
+    @Test
+    public void shouldTreatReturningAsQuery() {
+        SQLDroidSqlClassification returning = SQLDroidSqlClassification.classify(
+                "insert into dummytable (value) values ('returning') returning id");
+        assertThat(returning.isInsert()).isTrue();
+        assertThat(returning.hasReturning()).isTrue();
+        assertThat(returning.isQuery()).isTrue();
+
+        SQLDroidSqlClassification plain = SQLDroidSqlClassification.classify(
+                "insert into dummytable (value) values ('returning'); select 1 returning");
+        assertThat(plain.hasReturning()).isFalse();
+        assertThat(plain.isQuery()).isFalse();
+    }
+
+    @Test
+    public void shouldTellPragmasThatWriteFromPragmasThatRead() {
+        assertThat(SQLDroidSqlClassification.classify("PRAGMA user_version").isWrite()).isFalse();
+        assertThat(SQLDroidSqlClassification.classify("pragma table_info('dummytable')").isWrite()).isFalse();
+        assertThat(SQLDroidSqlClassification.classify("PRAGMA main.index_list(dummytable)").isWrite()).isFalse();
+        assertThat(SQLDroidSqlClassification.classify("PRAGMA user_version = 5").isWrite()).isTrue();
+        assertThat(SQLDroidSqlClassification.classify("PRAGMA main.journal_mode=DELETE").isWrite()).isTrue();
+        assertThat(SQLDroidSqlClassification.classify("PRAGMA wal_checkpoint").isWrite()).isTrue();
+        assertThat(SQLDroidSqlClassification.classify("PRAGMA wal_checkpoint(TRUNCATE)").isWrite()).isTrue();
+        assertThat(SQLDroidSqlClassification.classify("PRAGMA foreign_keys(1)").isWrite()).isTrue();
+        assertThat(SQLDroidSqlClassification.classify("select 1").isWrite()).isFalse();
+        assertThat(SQLDroidSqlClassification.classify("delete from dummytable").isWrite()).isTrue();
+    }
+
+    @Test
+    public void shouldCountParameters() {
+        assertThat(SQLDroidSqlClassification.classify("select 1").getParameterCount()).isEqualTo(0);
+        assertThat(SQLDroidSqlClassification.classify("insert into t values (?, ?, '?', \"?\") -- ?")
+                .getParameterCount()).isEqualTo(2);
+        assertThat(SQLDroidSqlClassification.classify("select * from t where a = ?3 or b = ?")
+                .getParameterCount()).isEqualTo(4);
+        assertThat(SQLDroidSqlClassification.classify("update t set a = :a, b = @b where c = $c")
+                .getParameterCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldRecognizeSimpleSelects() {
+        SQLDroidSqlClassification simple = SQLDroidSqlClassification.classify(
+                "SELECT a, b AS c FROM main.t WHERE a = ? AND b IN (SELECT x FROM y ORDER BY x);");
+        assertThat(simple.isSimpleSelect()).isTrue();
+        assertThat(simple.getSelectColumns()).isEqualTo("a, b AS c");
+        assertThat(simple.getSelectTable()).isEqualTo("main.t");
+        assertThat(simple.getSelectWhere()).isEqualTo("a = ? AND b IN (SELECT x FROM y ORDER BY x)");
+
+        assertThat(SQLDroidSqlClassification.classify("select * from t").getSelectWhere()).isNull();
+        assertThat(SQLDroidSqlClassification.classify("select count(*) from t").isSimpleSelect()).isFalse();
+        assertThat(SQLDroidSqlClassification.classify("select distinct a from t").isSimpleSelect()).isFalse();
+        assertThat(SQLDroidSqlClassification.classify("select * from t order by a").isSimpleSelect()).isFalse();
+        assertThat(SQLDroidSqlClassification.classify("select * from t where a > 1 limit 4").isSimpleSelect()).isFalse();
+        assertThat(SQLDroidSqlClassification.classify("select * from t x join u on x.a = u.a").isSimpleSelect()).isFalse();
+        assertThat(SQLDroidSqlClassification.classify("select a from t where b = :b").isSimpleSelect()).isFalse();
+    }
+
+    private static SQLDroidSqlClassification.Kind kindOf(String sql) {
+        return SQLDroidSqlClassification.classify(sql).getKind();
+    }
+}
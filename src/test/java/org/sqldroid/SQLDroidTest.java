@@ -2,6 +2,7 @@ package org.sqldroid;
 
 import junit.framework.AssertionFailedError;
 
+import org.assertj.core.api.ThrowableAssert;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -12,6 +13,7 @@ import org.robolectric.annotation.Config;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.math.BigDecimal;
+import java.sql.BatchUpdateException;
 import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.Date;
@@ -20,7 +22,11 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.GregorianCalendar;
 import java.util.List;
@@ -28,6 +34,7 @@ import java.util.Random;
 import java.util.UUID;
 
 import static org.assertj.core.api.Java6Assertions.assertThat;
+import static org.assertj.core.api.Java6Assertions.assertThatThrownBy;
 
 
 /**
@@ -205,6 +212,482 @@ public class SQLDroidTest {
         }
     }
 
+    @Test
+    public void shouldExecutePreparedStatementRepeatedly() throws SQLException {
+        conn.createStatement().execute("CREATE TABLE sensortest (id int, reading double)");
+
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO sensortest (id, reading) VALUES (?, ?)")) {
+            for (int i = 0; i < 10; i++) {
+                stmt.setInt(1, i);
+                stmt.setDouble(2, i * 0.5);
+                assertThat(stmt.executeUpdate()).as("rowCount").isEqualTo(1);
+            }
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement("UPDATE sensortest SET reading = ? WHERE id < ?")) {
+            stmt.setDouble(1, 42.0);
+            stmt.setInt(2, 4);
+            assertThat(stmt.executeUpdate()).as("rowCount").isEqualTo(4);
+            stmt.setDouble(1, 43.0);
+            stmt.setInt(2, 2);
+            assertThat(stmt.executeUpdate()).as("rowCount").isEqualTo(2);
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT count(*) FROM sensortest WHERE reading = ?")) {
+            stmt.setDouble(1, 42.0);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                assertThat(rs.getInt(1)).isEqualTo(2);
+            }
+        }
+    }
+
+    @Test
+    public void shouldExecutePreparedBatchInOneTransaction() throws SQLException {
+        conn.createStatement().execute("CREATE TABLE batchtest (id int primary key, value text)");
+
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO batchtest (id, value) VALUES (?, ?)")) {
+            for (int i = 0; i < 100; i++) {
+                stmt.setInt(1, i);
+                stmt.setString(2, "value " + i);
+                stmt.addBatch();
+            }
+            int[] counts = stmt.executeBatch();
+            assertThat(counts).hasSize(100).containsOnly(1);
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement("UPDATE batchtest SET value = ? WHERE id < ?")) {
+            stmt.setString(1, "low");
+            stmt.setInt(2, 10);
+            stmt.addBatch();
+            stmt.setString(1, "lower");
+            stmt.setInt(2, 5);
+            stmt.addBatch();
+            assertThat(stmt.executeBatch()).containsExactly(10, 5);
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO batchtest (id, value) VALUES (?, ?)")) {
+            stmt.setInt(1, 1000);
+            stmt.setString(2, "new");
+            stmt.addBatch();
+            stmt.setInt(1, 1);
+            stmt.setString(2, "duplicate");
+            stmt.addBatch();
+            try {
+                stmt.executeBatch();
+                throw new AssertionFailedError("Expected BatchUpdateException");
+            } catch (BatchUpdateException e) {
+                assertThat(e.getUpdateCounts()).containsExactly(Statement.EXECUTE_FAILED, Statement.EXECUTE_FAILED);
+            }
+        }
+
+        try (ResultSet rs = conn.createStatement().executeQuery("SELECT count(*) FROM batchtest")) {
+            rs.next();
+            assertThat(rs.getInt(1)).as("rows after rolled back batch").isEqualTo(100);
+        }
+    }
+
+    @Test
+    public void shouldReturnUpdateCountPerBatchedStatement() throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.addBatch("CREATE TABLE scripttest (id int primary key, value text)");
+        stmt.addBatch("INSERT INTO scripttest (id, value) VALUES (1, 'one')");
+        stmt.addBatch("INSERT INTO scripttest (id, value) VALUES (2, 'two')");
+        stmt.addBatch("UPDATE scripttest SET value = 'many'");
+        assertThat(stmt.executeBatch()).containsExactly(0, 1, 1, 2);
+
+        stmt.addBatch("INSERT INTO scripttest (id, value) VALUES (3, 'three')");
+        stmt.addBatch("INSERT INTO scripttest (id, value) VALUES (1, 'duplicate')");
+        stmt.addBatch("INSERT INTO scripttest (id, value) VALUES (4, 'four')");
+        try {
+            stmt.executeBatch();
+            throw new AssertionFailedError("Expected BatchUpdateException");
+        } catch (BatchUpdateException e) {
+            assertThat(e.getUpdateCounts()).containsOnly(Statement.EXECUTE_FAILED);
+        }
+        assertThat(countRows("scripttest")).as("rows after rolled back batch").isEqualTo(2);
+
+        ((SQLDroidConnection) conn).setContinueBatchOnError(true);
+        stmt.addBatch("INSERT INTO scripttest (id, value) VALUES (3, 'three')");
+        stmt.addBatch("INSERT INTO scripttest (id, value) VALUES (1, 'duplicate')");
+        stmt.addBatch("INSERT INTO scripttest (id, value) VALUES (4, 'four')");
+        try {
+            stmt.executeBatch();
+            throw new AssertionFailedError("Expected BatchUpdateException");
+        } catch (BatchUpdateException e) {
+            assertThat(e.getUpdateCounts()).containsExactly(1, Statement.EXECUTE_FAILED, 1);
+        }
+        assertThat(countRows("scripttest")).as("rows after partially applied batch").isEqualTo(4);
+        stmt.close();
+    }
+
+    @Test
+    public void shouldBindQueryParametersWithTheirTypes() throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT typeof(?), typeof(?), typeof(?), typeof(?), typeof(?)")) {
+            stmt.setLong(1, 42L);
+            stmt.setDouble(2, 0.5);
+            stmt.setString(3, "42");
+            stmt.setBytes(4, new byte[]{1, 2});
+            stmt.setNull(5, Types.INTEGER);
+            try (ResultSet rs = stmt.executeQuery()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getString(1)).isEqualTo("integer");
+                assertThat(rs.getString(2)).isEqualTo("real");
+                assertThat(rs.getString(3)).isEqualTo("text");
+                assertThat(rs.getString(4)).isEqualTo("blob");
+                assertThat(rs.getString(5)).isEqualTo("null");
+            }
+        }
+    }
+
+    @Test
+    public void shouldExecuteEmptyQueriesLazily() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE lazy (id INTEGER PRIMARY KEY)");
+            assertThat(stmt.execute("SELECT * FROM lazy")).isFalse();
+
+            ((SQLDroidConnection) conn).setLazyQueryExecution(true);
+            assertThat(stmt.execute("SELECT * FROM lazy")).isTrue();
+            assertThat(stmt.getResultSet().next()).isFalse();
+
+            // a query that is not a SELECT is run by execute, even if nobody reads its result
+            stmt.execute("PRAGMA user_version = 7");
+            try (ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getInt(1)).isEqualTo(7);
+            }
+        }
+        try (PreparedStatement stmt = conn.prepareStatement("PRAGMA user_version = 8")) {
+            assertThat(stmt.execute()).isTrue();
+        }
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+            assertThat(rs.next()).isTrue();
+            assertThat(rs.getInt(1)).isEqualTo(8);
+        }
+    }
+
+    @Test
+    public void shouldExecutePragmasAsUpdates() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            assertThat(stmt.executeUpdate("PRAGMA user_version = 3")).isEqualTo(0);
+            assertThat(userVersion()).isEqualTo(3);
+
+            stmt.addBatch("PRAGMA user_version = 4");
+            stmt.addBatch("PRAGMA foreign_keys = ON");
+            assertThat(stmt.executeBatch()).containsExactly(0, 0);
+            assertThat(userVersion()).isEqualTo(4);
+
+            assertThatThrownBy(new ThrowableAssert.ThrowingCallable() {
+                @Override
+                public void call() throws Throwable {
+                    conn.createStatement().executeUpdate("SELECT 1");
+                }
+            }).isInstanceOf(SQLException.class).hasMessageContaining("result set");
+        }
+    }
+
+    private int userVersion() throws SQLException {
+        try (ResultSet rs = conn.createStatement().executeQuery("PRAGMA user_version")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    @Test
+    public void shouldReadResultsInPagesOfTheFetchSize() throws SQLException {
+        ((SQLDroidConnection) conn).setKeysetPaging(true);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE paged (id INTEGER PRIMARY KEY, value TEXT)");
+        }
+        try (PreparedStatement insert = conn.prepareStatement("INSERT INTO paged (value) VALUES (?)")) {
+            for (int i = 1; i <= 25; i++) {
+                insert.setString(1, "value" + i);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT value FROM paged WHERE id > ?")) {
+            stmt.setFetchSize(10);
+            stmt.setInt(1, 2);
+            try (ResultSet rs = stmt.executeQuery()) {
+                // the parameters of a result set that is read in pages can change
+                stmt.setInt(1, 20);
+                assertThat(rs.getMetaData().getColumnCount()).isEqualTo(1);
+                for (int i = 3; i <= 25; i++) {
+                    assertThat(rs.next()).isTrue();
+                    assertThat(rs.getRow()).isEqualTo(i - 2);
+                    assertThat(rs.getString(1)).isEqualTo("value" + i);
+                    assertThat(rs.isLast()).isEqualTo(i == 25);
+                }
+                assertThat(rs.next()).isFalse();
+            }
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.setFetchSize(5);
+            try (final ResultSet rs = stmt.executeQuery("SELECT * FROM paged")) {
+                int rows = 0;
+                while (rs.next()) {
+                    rows++;
+                    assertThat(rs.getInt("id")).isEqualTo(rows);
+                }
+                assertThat(rows).isEqualTo(25);
+                assertThatThrownBy(new ThrowableAssert.ThrowingCallable() {
+                    @Override
+                    public void call() throws Throwable {
+                        rs.first();
+                    }
+                }).isInstanceOf(SQLFeatureNotSupportedException.class);
+            }
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE VIEW paged_view AS SELECT id, value FROM paged");
+            stmt.executeUpdate("CREATE TABLE paged_keys (key TEXT PRIMARY KEY, value TEXT) WITHOUT ROWID");
+            stmt.executeUpdate("INSERT INTO paged_keys VALUES ('a', 'x'), ('b', 'y'), ('c', 'z')");
+            stmt.setFetchSize(2);
+            // views and tables without rowid are read through a single cursor
+            try (ResultSet rs = stmt.executeQuery("SELECT * FROM paged_view")) {
+                assertThat(rs.last()).isTrue();
+                assertThat(rs.getRow()).isEqualTo(25);
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT * FROM paged_keys")) {
+                assertThat(rs.last()).isTrue();
+                assertThat(rs.getRow()).isEqualTo(3);
+            }
+        }
+        // without keyset paging the fetch size is only a hint
+        ((SQLDroidConnection) conn).setKeysetPaging(false);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.setFetchSize(5);
+            try (ResultSet rs = stmt.executeQuery("SELECT * FROM paged")) {
+                assertThat(rs.last()).isTrue();
+                assertThat(rs.getRow()).isEqualTo(25);
+            }
+        }
+    }
+
+    @Test
+    public void shouldLimitEveryQueryToMaxRows() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE limited (id INTEGER PRIMARY KEY)");
+            stmt.executeUpdate("INSERT INTO limited VALUES (1), (2), (3), (4), (5)");
+            stmt.setMaxRows(2);
+            assertThat(stmt.getMaxRows()).isEqualTo(2);
+            assertThat(countRows(stmt.executeQuery("SELECT * FROM limited LIMIT 4; -- comment"))).isEqualTo(2);
+            assertThat(stmt.execute("SELECT * FROM limited ORDER BY id DESC")).isTrue();
+            try (ResultSet rs = stmt.getResultSet()) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getInt(1)).isEqualTo(5);
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.isLast()).isTrue();
+                assertThat(rs.next()).isFalse();
+            }
+            assertThat(countRows(stmt.executeQuery("PRAGMA table_info(limited)"))).isEqualTo(1);
+            // a limit in SQLite would rename the second column to "id:1"
+            try (ResultSet rs = stmt.executeQuery("SELECT a.id, b.id FROM limited a JOIN limited b ON a.id = b.id")) {
+                assertThat(rs.getMetaData().getColumnName(1)).isEqualTo("id");
+                assertThat(rs.getMetaData().getColumnName(2)).isEqualTo("id");
+                assertThat(countRows(rs)).isEqualTo(2);
+            }
+        }
+        // the listeners see one limited query per execution, not the compilation that checks its columns
+        final List<String> queries = new ArrayList<String>();
+        SQLDroidExecutionListener listener = new SQLDroidExecutionListener() {
+            @Override
+            public void beforeExecution(SQLDroidExecution execution) {
+                queries.add(execution.getSql());
+            }
+
+            @Override
+            public void afterExecution(SQLDroidExecution execution) {
+            }
+        };
+        ((SQLDroidConnection) conn).addExecutionListener(listener);
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT * FROM limited WHERE id > ?")) {
+            stmt.setMaxRows(3);
+            stmt.setInt(1, 1);
+            assertThat(countRows(stmt.executeQuery())).isEqualTo(3);
+            assertThat(countRows(stmt.executeQuery())).isEqualTo(3);
+            assertThat(queries).containsExactly("SELECT * FROM (SELECT * FROM limited WHERE id > ?) LIMIT 3",
+                    "SELECT * FROM (SELECT * FROM limited WHERE id > ?) LIMIT 3");
+            ((SQLDroidConnection) conn).removeExecutionListener(listener);
+            stmt.setFetchSize(2);
+            assertThat(countRows(stmt.executeQuery())).isEqualTo(3);
+        }
+    }
+
+    private static int countRows(ResultSet rs) throws SQLException {
+        int rows = 0;
+        while (rs.next()) {
+            rows++;
+        }
+        rs.close();
+        return rows;
+    }
+
+    @Test
+    public void shouldBindBatchRowsOfDifferentTypes() throws SQLException {
+        conn.createStatement().execute("CREATE TABLE mixedtest (a, b, c)");
+
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO mixedtest (a, b, c) VALUES (?, ?, ?)")) {
+            stmt.setInt(1, 1);
+            stmt.setDouble(2, 1.5);
+            stmt.setString(3, "one");
+            stmt.addBatch();
+            stmt.setString(1, "two");
+            stmt.setNull(2, Types.DOUBLE);
+            stmt.setLong(3, 2L);
+            stmt.addBatch();
+            // parameters that are not set are bound as null
+            stmt.setBoolean(1, true);
+            stmt.addBatch();
+            assertThat(stmt.executeBatch()).containsExactly(1, 1, 1);
+        }
+
+        try (ResultSet rs = conn.createStatement().executeQuery(
+                "SELECT typeof(a) || ' ' || typeof(b) || ' ' || typeof(c) FROM mixedtest ORDER BY rowid")) {
+            assertThat(rs.next()).isTrue();
+            assertThat(rs.getString(1)).isEqualTo("integer real text");
+            assertThat(rs.next()).isTrue();
+            assertThat(rs.getString(1)).isEqualTo("text null integer");
+            assertThat(rs.next()).isTrue();
+            assertThat(rs.getString(1)).isEqualTo("integer null null");
+        }
+    }
+
+    @Test
+    public void shouldRewriteBatchedInsertsToMultiRowInserts() throws SQLException {
+        ((SQLDroidConnection) conn).setRewriteBatchedInserts(true);
+        conn.createStatement().execute("CREATE TABLE bulktest (id INTEGER PRIMARY KEY, value TEXT)");
+
+        // 1200 rows of 2 parameters take three multi-row inserts of at most 499 rows
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO bulktest (id, value) VALUES (?, ?)")) {
+            for (int i = 0; i < 1200; i++) {
+                stmt.setInt(1, i);
+                stmt.setString(2, "value " + i);
+                stmt.addBatch();
+            }
+            int[] counts = stmt.executeBatch();
+            assertThat(counts).hasSize(1200);
+            for (int count : counts) {
+                assertThat(count).isEqualTo(1);
+            }
+        }
+        assertThat(countRows("bulktest")).isEqualTo(1200);
+        try (ResultSet rs = conn.createStatement().executeQuery("SELECT value FROM bulktest WHERE id = 1199")) {
+            assertThat(rs.next()).isTrue();
+            assertThat(rs.getString(1)).isEqualTo("value 1199");
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT OR IGNORE INTO bulktest (id, value) VALUES (?, ?)")) {
+            for (int id = 1199; id <= 1201; id++) {
+                stmt.setInt(1, id);
+                stmt.setString(2, "again");
+                stmt.addBatch();
+            }
+            assertThat(stmt.executeBatch()).containsExactly(Statement.SUCCESS_NO_INFO, Statement.SUCCESS_NO_INFO,
+                    Statement.SUCCESS_NO_INFO);
+        }
+        assertThat(countRows("bulktest")).isEqualTo(1202);
+
+        ((SQLDroidConnection) conn).setContinueBatchOnError(true);
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO bulktest (id, value) VALUES (?, ?)")) {
+            for (int id = 1300; id <= 1302; id++) {
+                stmt.setInt(1, id == 1301 ? 1 : id);
+                stmt.setString(2, "duplicate");
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            throw new AssertionFailedError("Expected BatchUpdateException");
+        } catch (BatchUpdateException e) {
+            assertThat(e.getUpdateCounts()).containsExactly(1, Statement.EXECUTE_FAILED, 1);
+        }
+        assertThat(countRows("bulktest")).isEqualTo(1204);
+
+        // ON CONFLICT FAIL keeps the rows a multi-row insert inserted before the conflict
+        conn.createStatement().execute("CREATE TABLE failtest (id INTEGER, UNIQUE (id) ON CONFLICT FAIL)");
+        conn.createStatement().execute("INSERT INTO failtest (id) VALUES (3)");
+        try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO failtest (id) VALUES (?)")) {
+            for (int id = 1; id <= 5; id++) {
+                stmt.setInt(1, id);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            throw new AssertionFailedError("Expected BatchUpdateException");
+        } catch (BatchUpdateException e) {
+            assertThat(e.getUpdateCounts()).containsExactly(1, 1, Statement.EXECUTE_FAILED, 1, 1);
+        }
+        assertThat(countRows("failtest")).isEqualTo(5);
+    }
+
+    private int countRows(String table) throws SQLException {
+        try (ResultSet rs = conn.createStatement().executeQuery("SELECT count(*) FROM " + table)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    @Test
+    public void shouldReturnGeneratedKeysOfBatchAndStatement() throws SQLException {
+        conn.createStatement()
+                .execute("create table keytest (id integer primary key autoincrement, value varchar(255))");
+
+        try (PreparedStatement stmt = conn.prepareStatement("insert into keytest (value) values (?)",
+                PreparedStatement.RETURN_GENERATED_KEYS)) {
+            for (int i = 0; i < 3; i++) {
+                stmt.setString(1, "value " + i);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            try (ResultSet rs = stmt.getGeneratedKeys()) {
+                for (long expected = 1; expected <= 3; expected++) {
+                    assertThat(rs.next()).isTrue();
+                    assertThat(rs.getLong(1)).isEqualTo(expected);
+                }
+                assertThat(rs.next()).isFalse();
+            }
+        }
+
+        try (Statement stmt = conn.createStatement()) {
+            assertThat(stmt.executeUpdate("insert into keytest (value) values ('four')", Statement.RETURN_GENERATED_KEYS))
+                    .isEqualTo(1);
+            try (ResultSet rs = stmt.getGeneratedKeys()) {
+                rs.next();
+                assertThat(rs.getLong(1)).isEqualTo(4);
+            }
+            assertThat(stmt.execute("insert into keytest (value) values ('five')", new String[]{"id"})).isFalse();
+            try (ResultSet rs = stmt.getGeneratedKeys()) {
+                rs.next();
+                assertThat(rs.getLong(1)).isEqualTo(5);
+            }
+
+            // inserts of many rows return the key of every row
+            assertThat(stmt.executeUpdate("insert into keytest (value) values ('six'), ('seven')",
+                    Statement.RETURN_GENERATED_KEYS)).isEqualTo(2);
+            assertGeneratedKeys(stmt, 6, 7);
+            assertThat(stmt.executeUpdate("insert into keytest (value) select value from keytest where id <= 3",
+                    Statement.RETURN_GENERATED_KEYS)).isEqualTo(3);
+            assertGeneratedKeys(stmt, 8, 9, 10);
+        }
+
+        try (PreparedStatement stmt = conn.prepareStatement("insert into keytest (value) select value from keytest where id <= ?",
+                Statement.RETURN_GENERATED_KEYS)) {
+            stmt.setInt(1, 2);
+            assertThat(stmt.executeUpdate()).isEqualTo(2);
+            assertGeneratedKeys(stmt, 11, 12);
+        }
+    }
+
+    private static void assertGeneratedKeys(Statement stmt, long... expected) throws SQLException {
+        try (ResultSet rs = stmt.getGeneratedKeys()) {
+            for (long key : expected) {
+                assertThat(rs.next()).isTrue();
+                assertThat(rs.getLong(1)).isEqualTo(key);
+            }
+            assertThat(rs.next()).isFalse();
+        }
+    }
+
     @Test
     public void shouldRetrieveSavedBlob() throws SQLException {
         conn.createStatement().execute("create table blobtest (key int, value blob)");